@@ -19,7 +19,7 @@ public class DNXAssembler {
 	}
 
 	public static List<DNXBytecode> assemble(String asm, DNXFile reader) {
-		List<DNXBytecode> out = new ArrayList<>();
+		List<DNXBytecode> out = new DNXList<>();
 		String[] tokens;
 		Opcode opcode;
 		for(String line : asm.split("\r?\n")) {
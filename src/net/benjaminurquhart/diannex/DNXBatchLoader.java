@@ -0,0 +1,76 @@
+package net.benjaminurquhart.diannex;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
+
+// Loads many files at once, sharing string contents between all of them. Each
+// file still gets its own DNXString objects (identity matters when a file is
+// written), but equal contents point at the same String through a weak pool,
+// so memory grows with the number of unique strings rather than the number
+// of files. Strings nobody references anymore drop out of the pool on their own.
+public class DNXBatchLoader {
+	
+	private final Interner<String> pool = Interners.newWeakInterner();
+	
+	public List<DNXFile> load(Collection<File> files) throws IOException {
+		return load(files, false);
+	}
+	
+	// Lazy files are mapped, see DNXFile#map
+	public List<DNXFile> load(Collection<File> files, boolean lazy) throws IOException {
+		List<CompletableFuture<DNXFile>> tasks = new ArrayList<>(files.size());
+		for(File file : files) {
+			tasks.add(CompletableFuture.supplyAsync(() -> {
+				try {
+					return load(file, lazy);
+				}
+				catch(IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			}));
+		}
+		
+		List<DNXFile> out = new ArrayList<>(tasks.size());
+		try {
+			for(CompletableFuture<DNXFile> task : tasks) {
+				out.add(task.join());
+			}
+		}
+		catch(CompletionException e) {
+			if(e.getCause() instanceof UncheckedIOException) {
+				throw ((UncheckedIOException)e.getCause()).getCause();
+			}
+			throw e.getCause() instanceof RuntimeException ? (RuntimeException)e.getCause() : e;
+		}
+		return out;
+	}
+	
+	public DNXFile load(File file, boolean lazy) throws IOException {
+		DNXFile out;
+		try {
+			out = lazy ? DNXFile.map(file) : new DNXFile(file);
+		}
+		catch(IllegalArgumentException e) {
+			throw new IOException("Failed to load " + file, e);
+		}
+		intern(out.strings);
+		intern(out.translations);
+		return out;
+	}
+	
+	// Also covers external function names and entry names, which come from the string table
+	private void intern(List<DNXString> strings) {
+		for(DNXString string : strings) {
+			string.intern(pool);
+		}
+	}
+}
@@ -30,28 +30,28 @@ public class DNXBytecode implements IDNXSerializable {
 	public static enum Opcode {
 		NOP(0x00),
 		
-		FREELOC(0x0A),
+		FREELOC(0x0A, Type.ONE),
 		
 		SAVE(0x0B),
 		LOAD(0x0C),
 		
 		PUSHU(0x0F),
-		PUSHI(0x10),
-		PUSHD(0x11),
+		PUSHI(0x10, Type.ONE),
+		PUSHD(0x11, Type.FLOAT),
 		
-		PUSHS(0x12),
-		PUSHINTS(0x13),
-		PUSHBS(0x14),
-		PUSHBINTS(0x15),
+		PUSHS(0x12, Type.ONE),
+		PUSHINTS(0x13, Type.TWO),
+		PUSHBS(0x14, Type.ONE),
+		PUSHBINTS(0x15, Type.TWO),
 		
-		MAKEARR(0x16),
+		MAKEARR(0x16, Type.ONE),
 		PUSHARRIND(0x17),
 		SETARRIND(0x18),
 		
-		SETVARGLB(0x19),
-		SETVARLOC(0x1A),
-		PUSHVARGLB(0x1B),
-		PUSHVARLOC(0x1C),
+		SETVARGLB(0x19, Type.ONE),
+		SETVARLOC(0x1A, Type.ONE),
+		PUSHVARGLB(0x1B, Type.ONE),
+		PUSHVARLOC(0x1C, Type.ONE),
 		
 		POP(0x1D),
 		DUP(0x1E),
@@ -81,41 +81,67 @@ public class DNXBytecode implements IDNXSerializable {
 		CMPLTE(0x34),
 		CMPNEQ(0x35),
 		
-		J(0x40),
-		JT(0x41),
-		JF(0x42),
+		J(0x40, Type.ONE),
+		JT(0x41, Type.ONE),
+		JF(0x42, Type.ONE),
 		EXIT(0x43),
 		RET(0x44),
-		CALL(0x45),
-		CALLEXT(0x46),
+		CALL(0x45, Type.TWO),
+		CALLEXT(0x46, Type.TWO),
 		
 		CHOICEBEG(0x47),
 		
-		CHOICEADD(0x48),
-		CHOICEADDT(0x49),
+		CHOICEADD(0x48, Type.ONE),
+		CHOICEADDT(0x49, Type.ONE),
 		CHOICESEL(0x4A),
 		
-		CHOOSEADD(0x4B),
-		CHOOSEADDT(0x4C),
+		CHOOSEADD(0x4B, Type.ONE),
+		CHOOSEADDT(0x4C, Type.ONE),
 		CHOOSESEL(0x4D),
 		
 		TEXTRUN(0x4E),
 		
 		PATCH_CALL(0xFF); // Unused, internal to the Diannex compiler
 		
+		private static final Opcode[] TABLE = new Opcode[256];
+		
+		static {
+			for(Opcode opcode : values()) {
+				TABLE[opcode.value] = opcode;
+			}
+		}
+		
 		private final int value;
+		private final Type type;
 		
 		private Opcode(int value) {
+			this(value, Type.DEFAULT);
+		}
+		
+		private Opcode(int value, Type type) {
 			this.value = value;
+			this.type = type;
 		}
 		
 		public static Opcode from(byte value) {
-			for(Opcode opcode : values()) {
-				if(opcode.value == value) {
-					return opcode;
-				}
+			Opcode opcode = TABLE[value & 0xff];
+			if(opcode == null) {
+				throw new IllegalArgumentException(String.format("Invalid opcode: 0x%x", value));
 			}
-			throw new IllegalArgumentException(String.format("Invalid opcode: 0x%x", value));
+			return opcode;
+		}
+		
+		public Type getType() {
+			return type;
+		}
+		
+		public int getValue() {
+			return value;
+		}
+		
+		// Opcode byte plus operands
+		public int getLength() {
+			return type.getLength() + 1;
 		}
 	}
 	
@@ -127,6 +153,17 @@ public class DNXBytecode implements IDNXSerializable {
 			Opcode.J
 	);
 	
+	// Jumps whose operand is stored as a byte offset in v3+ files
+	public static final Set<Opcode> RELOCATABLE = EnumSet.of(
+			Opcode.J, 
+			Opcode.JT, 
+			Opcode.JF,
+			Opcode.CHOICEADD,
+			Opcode.CHOOSEADD,
+			Opcode.CHOICEADDT,
+			Opcode.CHOOSEADDT
+	);
+	
 	public static final Set<Opcode> STRING_RESOLVE = EnumSet.of(
 			Opcode.PUSHS,
 			Opcode.PUSHBS,
@@ -144,8 +181,19 @@ public class DNXBytecode implements IDNXSerializable {
 	
 	protected int offset;
 	
+	// File whose modification count the setters bump, see DNXFile#adopt
+	protected DNXFile owner;
+	
 	private DNXBytecode() {}
 	
+	protected DNXBytecode(Opcode opcode, int arg1, int arg2, double argDouble) {
+		this.opcode = opcode;
+		this.arg1 = arg1;
+		this.arg2 = arg2;
+		this.argDouble = argDouble;
+		determineType();
+	}
+	
 	public DNXBytecode(ByteBuffer reader) {
 		opcode = Opcode.from(reader.get());
 		determineType();
@@ -165,6 +213,7 @@ public class DNXBytecode implements IDNXSerializable {
 	}
 	
 	public DNXBytecode(DNXFile reader, Opcode opcode, Object... args) {
+		this.owner = reader;
 		this.opcode = opcode;
 		determineType();
 		
@@ -241,14 +290,14 @@ public class DNXBytecode implements IDNXSerializable {
 		if(arg instanceof DNXString) {
 			string = (DNXString)arg;
 			if(opcode == Opcode.PUSHS || opcode == Opcode.PUSHINTS) {
-				index = reader.getTranslationStrings().indexOf(string);
+				index = reader.indexOfTranslationString(string);
 				if(index == -1) {
 					index = reader.getTranslationStrings().size();
 					reader.addTranslationString(string);
 				}
 			}
 			else {
-				index = reader.getStrings().indexOf(string);
+				index = reader.indexOfString(string);
 				if(index == -1) {
 					index = reader.getStrings().size();
 					reader.addString(string);
@@ -260,11 +309,11 @@ public class DNXBytecode implements IDNXSerializable {
 			String val = String.valueOf(arg);
 			if(opcode == Opcode.PUSHS || opcode == Opcode.PUSHINTS) {
 				string = reader.newTranslationString(val);
-				return reader.getTranslationStrings().indexOf(string);
+				return reader.indexOfTranslationString(string);
 			}
 			else {
 				string = reader.newString(val);
-				return reader.getStrings().indexOf(string);
+				return reader.indexOfString(string);
 			}
 		}
 	}
@@ -288,48 +337,39 @@ public class DNXBytecode implements IDNXSerializable {
 	}
 	
 	private void determineType() {
-		switch(opcode) {
-		case FREELOC:
-		case PUSHI:
-		case PUSHS:
-		case PUSHBS:
-		case SETVARGLB:
-		case SETVARLOC:
-		case PUSHVARGLB:
-		case PUSHVARLOC:
-		case J:
-		case JT:
-		case JF:
-		case CHOICEADD:
-		case CHOICEADDT:
-		case CHOOSEADD:
-		case CHOOSEADDT:
-		case MAKEARR:
-			type = Type.ONE;
-			break;
-		case CALL:
-		case CALLEXT:
-		case PUSHINTS:
-		case PUSHBINTS:
-			type = Type.TWO;
-			break;
-		case PUSHD:
-			type = Type.FLOAT;
-			break;
-		default: type = Type.DEFAULT;
-		}
+		type = opcode.getType();
+	}
+	
+	// Encoded length of the instruction starting with the given opcode byte
+	protected static int lengthOf(byte opcode) {
+		return Opcode.from(opcode).getLength();
 	}
 	
 	public void setFirstArg(int arg) {
 		arg1 = arg;
+		modified();
 	}
 	
 	public void setSecondArg(int arg) {
 		arg2 = arg;
+		modified();
 	}
 	
 	public void setDoubleArg(double arg) {
 		argDouble = arg;
+		modified();
+	}
+	
+	private void modified() {
+		if(owner != null) {
+			owner.modified();
+		}
+	}
+	
+	// For instructions that are still being loaded or written, which nothing
+	// can have been built from yet
+	protected void relocate(int arg) {
+		arg1 = arg;
 	}
 	
 	@Override
@@ -337,6 +377,25 @@ public class DNXBytecode implements IDNXSerializable {
 		return type.getLength() + 1;
 	}
 	
+	@Override
+	public void writeTo(DNXFile reader, ByteBuffer buffer) {
+		buffer.put((byte)opcode.value);
+		switch(type) {
+		case TWO:
+			buffer.putInt(arg1);
+			buffer.putInt(arg2);
+			break;
+		case FLOAT:
+			buffer.putDouble(argDouble);
+			break;
+		case ONE:
+			buffer.putInt(arg1);
+			break;
+		default:
+			break;
+		}
+	}
+	
 	@Override
 	public void serialize(DNXFile reader, LittleEndianDataOutputStream buff) throws IOException {
 		buff.write(opcode.value);
@@ -0,0 +1,169 @@
+package net.benjaminurquhart.diannex;
+
+import java.nio.ByteBuffer;
+import java.util.AbstractList;
+import java.util.List;
+import java.util.RandomAccess;
+
+import net.benjaminurquhart.diannex.DNXBytecode.Opcode;
+import net.benjaminurquhart.diannex.DNXBytecode.Type;
+
+// Read-only instructions stored as parallel arrays instead of one object each.
+// Instructions with two int operands or a double operand store an index into
+// the matching side table as their operand.
+public final class DNXCode {
+	
+	private final byte[] opcodes;
+	private final int[] operands;
+	
+	// Both operands of every two operand instruction, one after the other
+	private final int[] pairs;
+	private final double[] doubles;
+	
+	private DNXCode(byte[] opcodes, int[] operands, int[] pairs, double[] doubles) {
+		this.opcodes = opcodes;
+		this.operands = operands;
+		this.pairs = pairs;
+		this.doubles = doubles;
+	}
+	
+	public static DNXCode of(List<DNXBytecode> instructions) {
+		int size = instructions.size(), twos = 0, floats = 0;
+		for(DNXBytecode instruction : instructions) {
+			switch(instruction.getType()) {
+			case TWO: twos++; break;
+			case FLOAT: floats++; break;
+			default: break;
+			}
+		}
+		
+		byte[] opcodes = new byte[size];
+		int[] operands = new int[size], pairs = new int[twos * 2];
+		double[] doubles = new double[floats];
+		
+		DNXBytecode instruction;
+		twos = floats = 0;
+		for(int i = 0; i < size; i++) {
+			instruction = instructions.get(i);
+			opcodes[i] = (byte)instruction.getOpcode().getValue();
+			switch(instruction.getType()) {
+			case ONE:
+				operands[i] = instruction.getFirstArg();
+				break;
+			case TWO:
+				operands[i] = twos;
+				pairs[twos * 2] = instruction.getFirstArg();
+				pairs[twos * 2 + 1] = instruction.getSecondArg();
+				twos++;
+				break;
+			case FLOAT:
+				operands[i] = floats;
+				doubles[floats++] = instruction.getDoubleArg();
+				break;
+			default: break;
+			}
+		}
+		return new DNXCode(opcodes, operands, pairs, doubles);
+	}
+	
+	// Reads every instruction left in the reader
+	protected static DNXCode read(ByteBuffer reader) {
+		int start = reader.position(), end = reader.limit();
+		int size = 0, twos = 0, floats = 0;
+		Type type;
+		for(int pos = start; pos < end; pos += type.getLength() + 1, size++) {
+			type = Opcode.from(reader.get(pos)).getType();
+			if(type == Type.TWO) {
+				twos++;
+			}
+			else if(type == Type.FLOAT) {
+				floats++;
+			}
+		}
+		
+		byte[] opcodes = new byte[size];
+		int[] operands = new int[size], pairs = new int[twos * 2];
+		double[] doubles = new double[floats];
+		
+		twos = floats = 0;
+		for(int i = 0; i < size; i++) {
+			opcodes[i] = reader.get();
+			switch(Opcode.from(opcodes[i]).getType()) {
+			case ONE:
+				operands[i] = reader.getInt();
+				break;
+			case TWO:
+				operands[i] = twos;
+				pairs[twos * 2] = reader.getInt();
+				pairs[twos * 2 + 1] = reader.getInt();
+				twos++;
+				break;
+			case FLOAT:
+				operands[i] = floats;
+				doubles[floats++] = reader.getDouble();
+				break;
+			default: break;
+			}
+		}
+		return new DNXCode(opcodes, operands, pairs, doubles);
+	}
+	
+	public int size() {
+		return opcodes.length;
+	}
+	
+	public Opcode getOpcode(int index) {
+		return Opcode.from(opcodes[index]);
+	}
+	
+	public int getFirstArg(int index) {
+		switch(getOpcode(index).getType()) {
+		case ONE: return operands[index];
+		case TWO: return pairs[operands[index] * 2];
+		default:  return 0;
+		}
+	}
+	
+	public int getSecondArg(int index) {
+		return getOpcode(index).getType() == Type.TWO ? pairs[operands[index] * 2 + 1] : 0;
+	}
+	
+	public double getDoubleArg(int index) {
+		return getOpcode(index).getType() == Type.FLOAT ? doubles[operands[index]] : 0;
+	}
+	
+	public int getLength(int index) {
+		return getOpcode(index).getLength();
+	}
+	
+	protected void setFirstArg(int index, int arg) {
+		switch(getOpcode(index).getType()) {
+		case ONE: operands[index] = arg; break;
+		case TWO: pairs[operands[index] * 2] = arg; break;
+		default: throw new IllegalArgumentException(getOpcode(index) + " has no int operand");
+		}
+	}
+	
+	// New instruction object, not tied to this code in any way
+	public DNXBytecode get(int index) {
+		return new DNXBytecode(getOpcode(index), getFirstArg(index), getSecondArg(index), getDoubleArg(index));
+	}
+	
+	// Read-only view that creates instruction objects as they're accessed
+	public List<DNXBytecode> asList() {
+		return new View();
+	}
+	
+	private class View extends AbstractList<DNXBytecode> implements RandomAccess {
+		
+		@Override
+		public DNXBytecode get(int index) {
+			return DNXCode.this.get(index);
+		}
+		
+		@Override
+		public int size() {
+			return opcodes.length;
+		}
+	}
+}
@@ -0,0 +1,232 @@
+package net.benjaminurquhart.diannex;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.google.common.io.LittleEndianDataOutputStream;
+
+// Where every bytecode chunk ends up in a file that's being written. Entries
+// that were never decoded are copied from the file they were loaded from as is,
+// so only code that was actually touched gets encoded again.
+class DNXCodeLayout {
+	
+	private final DNXFile file;
+	private final DNXCodeSection source;
+	
+	// Either cloned instructions or the raw bytes of an untouched chunk
+	private final List<Object> segments = new ArrayList<>();
+	
+	// Byte offset and instruction index of every segment, plus the end.
+	// Instruction counts of raw v3+ chunks are only worked out when needed.
+	private int[] offsets = new int[17], indices = new int[17];
+	private boolean indexed;
+	
+	// Bytecode positions of every entry, in the same order as they're stored
+	private final Map<DNXCompiled, int[]> positions = new IdentityHashMap<>();
+	
+	private final Set<DNXBytecode> seen = Collections.newSetFromMap(new IdentityHashMap<>());
+	
+	protected DNXCodeLayout(DNXFile file) {
+		this.file = file;
+		this.source = file.lazyCode;
+		this.indexed = file.version < 3;
+	}
+	
+	protected void add(DNXCompiled entry) {
+		if(entry.pending && !isSelfContained(entry)) {
+			file.decode(entry);
+		}
+		
+		int[] out;
+		if(entry.pending) {
+			int[] indicies = entry.bytecodeIndicies;
+			out = new int[indicies.length];
+			for(int i = 0; i < indicies.length; i++) {
+				out[i] = indicies[i] < 0 ? -1 : addRaw(indicies[i]);
+			}
+		}
+		else {
+			out = new int[entry.flags.size() * 2 + 1];
+			out[0] = addDecoded(entry.instructions);
+			
+			DNXFlag flag;
+			for(int i = 0; i < entry.flags.size(); i++) {
+				flag = entry.flags.get(i);
+				out[i * 2 + 1] = addDecoded(flag.valueBytecode);
+				out[i * 2 + 2] = addDecoded(flag.keyBytecode);
+			}
+		}
+		positions.put(entry, out);
+	}
+	
+	protected int[] positionsOf(DNXCompiled entry) {
+		return positions.get(entry);
+	}
+	
+	private boolean isSelfContained(DNXCompiled entry) {
+		for(int index : entry.bytecodeIndicies) {
+			if(index >= 0 && !source.isSelfContained(index)) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	private int addDecoded(List<DNXBytecode> instructions) {
+		if(instructions.isEmpty()) {
+			return -1;
+		}
+		List<DNXBytecode> copy = new ArrayList<>(instructions.size());
+		int length = 0;
+		for(DNXBytecode instruction : instructions) {
+			if(!seen.add(instruction)) {
+				throw new IllegalStateException("Duplicate bytecode element: " + instruction);
+			}
+			copy.add(instruction.clone());
+			length += instruction.getLength();
+		}
+		return addSegment(copy, length, copy.size());
+	}
+	
+	private int addRaw(int entry) {
+		ByteBuffer chunk = source.chunk(entry);
+		if(!chunk.hasRemaining()) {
+			return -1;
+		}
+		return addSegment(chunk, chunk.remaining(), indexed ? source.countOf(entry) : -1);
+	}
+	
+	private int addSegment(Object segment, int length, int count) {
+		int index = segments.size();
+		if(index + 1 >= offsets.length) {
+			offsets = Arrays.copyOf(offsets, offsets.length * 2);
+			indices = Arrays.copyOf(indices, indices.length * 2);
+		}
+		segments.add(segment);
+		offsets[index + 1] = offsets[index] + length;
+		indices[index + 1] = indexed ? indices[index] + count : -1;
+		return file.version >= 3 ? offsets[index] : indices[index];
+	}
+	
+	// Converts jumps in re-encoded code back into byte offsets. Raw chunks
+	// are self contained, so they never need this.
+	private void relocate() {
+		DNXBytecode instruction;
+		int[] local;
+		for(int s = 0, target; s < segments.size(); s++) {
+			if(!(segments.get(s) instanceof List)) {
+				continue;
+			}
+			@SuppressWarnings("unchecked")
+			List<DNXBytecode> code = (List<DNXBytecode>)segments.get(s);
+			local = new int[code.size() + 1];
+			local[0] = offsets[s];
+			for(int i = 0; i < code.size(); i++) {
+				local[i + 1] = local[i] + code.get(i).getLength();
+			}
+			for(int i = 0; i < code.size(); i++) {
+				instruction = code.get(i);
+				if(DNXBytecode.RELOCATABLE.contains(instruction.getOpcode())) {
+					target = i + instruction.getFirstArg();
+					if(target >= 0 && target < local.length) {
+						target = local[target];
+					}
+					else {
+						target = offsetOf(s, target, instruction);
+					}
+					instruction.relocate(target - local[i + 1]);
+				}
+			}
+		}
+	}
+	
+	// Byte offset of a jump target that's outside of its own segment
+	private int offsetOf(int from, int target, DNXBytecode instruction) {
+		if(!indexed) {
+			for(int s = 0; s < segments.size(); s++) {
+				if(indices[s + 1] < 0) {
+					indices[s + 1] = indices[s] + countOf(segments.get(s));
+				}
+			}
+			indexed = true;
+		}
+		int index = indices[from] + target;
+		int last = segments.size();
+		if(index < 0 || index > indices[last]) {
+			throw new IllegalStateException("Jump out of bounds: " + instruction);
+		}
+		if(index == indices[last]) {
+			return offsets[last];
+		}
+		int s = Arrays.binarySearch(indices, 0, last + 1, index);
+		if(s < 0) {
+			s = -s - 2;
+		}
+		
+		int offset = offsets[s];
+		Object segment = segments.get(s);
+		if(segment instanceof ByteBuffer) {
+			ByteBuffer chunk = (ByteBuffer)segment;
+			for(int i = indices[s], pos = 0; i < index; i++) {
+				pos += DNXBytecode.lengthOf(chunk.get(pos));
+				offset = offsets[s] + pos;
+			}
+		}
+		else {
+			@SuppressWarnings("unchecked")
+			List<DNXBytecode> code = (List<DNXBytecode>)segment;
+			for(int i = indices[s]; i < index; i++) {
+				offset += code.get(i - indices[s]).getLength();
+			}
+		}
+		return offset;
+	}
+	
+	private static int countOf(Object segment) {
+		if(segment instanceof List) {
+			return ((List<?>)segment).size();
+		}
+		ByteBuffer chunk = (ByteBuffer)segment;
+		int count = 0;
+		for(int pos = 0; pos < chunk.limit(); pos += DNXBytecode.lengthOf(chunk.get(pos))) {
+			count++;
+		}
+		return count;
+	}
+	
+	// Encoded size of the whole bytecode section
+	protected int size() {
+		return 4 + offsets[segments.size()];
+	}
+	
+	// Writes the whole bytecode section, including its leading byte/instruction count
+	protected void write(DNXOutputBuffer out, LittleEndianDataOutputStream stream) throws IOException {
+		int last = segments.size();
+		if(file.version >= 3) {
+			relocate();
+			stream.writeInt(offsets[last]);
+		}
+		else {
+			stream.writeInt(indices[last]);
+		}
+		for(Object segment : segments) {
+			if(segment instanceof ByteBuffer) {
+				out.write(((ByteBuffer)segment).duplicate());
+			}
+			else {
+				@SuppressWarnings("unchecked")
+				List<DNXBytecode> code = (List<DNXBytecode>)segment;
+				for(DNXBytecode instruction : code) {
+					instruction.writeTo(file, out.reserve(instruction.getLength()));
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,217 @@
+package net.benjaminurquhart.diannex;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.List;
+
+// Raw bytecode section of a lazily loaded file. Nothing in here is turned
+// into DNXBytecode objects until an entry actually asks for its instructions.
+class DNXCodeSection {
+	
+	private ByteBuffer data;
+	private final int version;
+	
+	// v2 only: byte offset of every instruction, plus the end of the section
+	private final int[] instructionOffsets;
+	
+	// Sorted, unique entry points (byte offsets in v3+, indices in v2)
+	private int[] entryPoints;
+	
+	protected DNXCodeSection(ByteBuffer reader, int version) {
+		this(reader, version, null);
+	}
+	
+	// v2 instruction offsets can be passed in when they're already known
+	protected DNXCodeSection(ByteBuffer reader, int version, int[] instructionOffsets) {
+		this.version = version;
+		
+		int start;
+		if(version >= 3) {
+			int numBytes = reader.getInt();
+			start = reader.position();
+			reader.position(start + numBytes);
+			this.instructionOffsets = null;
+		}
+		else if(instructionOffsets != null) {
+			int size = reader.getInt();
+			if(instructionOffsets.length != size + 1) {
+				throw new IllegalArgumentException("Expected " + (size + 1) + " instruction offsets, got " + instructionOffsets.length);
+			}
+			start = reader.position();
+			reader.position(start + instructionOffsets[size]);
+			this.instructionOffsets = instructionOffsets;
+		}
+		else {
+			int size = reader.getInt();
+			start = reader.position();
+			instructionOffsets = new int[size + 1];
+			for(int i = 0; i < size; i++) {
+				instructionOffsets[i] = reader.position() - start;
+				reader.position(reader.position() + DNXBytecode.lengthOf(reader.get(reader.position())));
+			}
+			instructionOffsets[size] = reader.position() - start;
+			this.instructionOffsets = instructionOffsets;
+		}
+		data = reader.slice(start, reader.position() - start).order(ByteOrder.LITTLE_ENDIAN);
+	}
+	
+	protected void setEntryPoints(int[] entryPoints) {
+		this.entryPoints = entryPoints;
+	}
+	
+	// Sorted, unique bytecode positions referenced by the given entries and their flags
+	@SafeVarargs
+	protected static int[] entryPointsOf(List<? extends DNXCompiled>... entries) {
+		int count = 0;
+		for(List<? extends DNXCompiled> list : entries) {
+			for(DNXCompiled entry : list) {
+				count += entry.bytecodeIndicies.length;
+			}
+		}
+		int[] points = new int[count];
+		count = 0;
+		for(List<? extends DNXCompiled> list : entries) {
+			for(DNXCompiled entry : list) {
+				for(int index : entry.bytecodeIndicies) {
+					if(index >= 0) {
+						points[count++] = index;
+					}
+				}
+			}
+		}
+		Arrays.sort(points, 0, count);
+		
+		int unique = 0;
+		for(int i = 0; i < count; i++) {
+			if(unique == 0 || points[unique - 1] != points[i]) {
+				points[unique++] = points[i];
+			}
+		}
+		return Arrays.copyOf(points, unique);
+	}
+	
+	protected int size() {
+		return data.limit();
+	}
+	
+	protected int[] getInstructionOffsets() {
+		return instructionOffsets;
+	}
+	
+	// Bytes of the chunk starting at the given entry point, up to the next one
+	protected synchronized ByteBuffer chunk(int entry) {
+		int index = indexOfEntry(entry);
+		int start = toOffset(entry);
+		int end = index + 1 < entryPoints.length ? toOffset(entryPoints[index + 1]) : data.limit();
+		return data.slice(start, end - start).order(ByteOrder.LITTLE_ENDIAN);
+	}
+	
+	// Number of instructions in the chunk starting at the given entry point
+	protected synchronized int countOf(int entry) {
+		int index = indexOfEntry(entry);
+		if(instructionOffsets != null) {
+			int end = index + 1 < entryPoints.length ? entryPoints[index + 1] : instructionOffsets.length - 1;
+			return end - entry;
+		}
+		int end = index + 1 < entryPoints.length ? entryPoints[index + 1] : data.limit();
+		return countInstructions(entry, end);
+	}
+	
+	// Whether every jump in the chunk lands inside of it (or right at its end),
+	// meaning the chunk can be moved around without re-encoding it
+	protected synchronized boolean isSelfContained(int entry) {
+		if(version < 3) {
+			return true;
+		}
+		int index = indexOfEntry(entry);
+		int end = index + 1 < entryPoints.length ? entryPoints[index + 1] : data.limit();
+		
+		int length, target;
+		for(int pos = entry; pos < end; pos += length) {
+			length = DNXBytecode.lengthOf(data.get(pos));
+			if(DNXBytecode.RELOCATABLE.contains(DNXBytecode.Opcode.from(data.get(pos)))) {
+				target = pos + length + data.getInt(pos + 1);
+				if(target < entry || target > end) {
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+	
+	// Copies the section out of the buffer it was loaded from, for when that
+	// buffer is about to stop being valid (e.g. the mapped file gets overwritten)
+	protected synchronized void detach() {
+		ByteBuffer copy = ByteBuffer.allocateDirect(data.limit()).order(ByteOrder.LITTLE_ENDIAN);
+		copy.put(data.duplicate().clear());
+		data = copy.flip();
+	}
+	
+	private int indexOfEntry(int entry) {
+		int index = Arrays.binarySearch(entryPoints, entry);
+		if(index < 0) {
+			throw new IllegalArgumentException("Not an entry point: " + entry);
+		}
+		return index;
+	}
+	
+	protected List<DNXBytecode> decode(int entry) {
+		return new DNXList<>(decodeCode(entry).asList());
+	}
+	
+	// Decodes the chunk starting at the given entry point, up to the next one.
+	// Jumps are converted from byte offsets to relative indices like the eager loader does.
+	protected synchronized DNXCode decodeCode(int entry) {
+		int start = toOffset(entry);
+		DNXCode out = DNXCode.read(chunk(entry));
+		
+		if(version >= 3) {
+			int[] offsets = new int[out.size() + 1];
+			offsets[0] = start;
+			for(int i = 0; i < out.size(); i++) {
+				offsets[i + 1] = offsets[i] + out.getLength(i);
+			}
+			
+			for(int i = 0; i < out.size(); i++) {
+				if(DNXBytecode.RELOCATABLE.contains(out.getOpcode(i))) {
+					out.setFirstArg(i, indexOf(offsets, offsets[i + 1] + out.getFirstArg(i)) - i);
+				}
+			}
+		}
+		return out;
+	}
+	
+	private int toOffset(int entry) {
+		return instructionOffsets == null ? entry : instructionOffsets[entry];
+	}
+	
+	// Index of the instruction at the given byte offset, relative to the chunk.
+	// Targets outside of the chunk are rare, so just walk the opcodes to find them.
+	private int indexOf(int[] offsets, int target) {
+		int index = Arrays.binarySearch(offsets, target);
+		if(index >= 0) {
+			return index;
+		}
+		int last = offsets.length - 1;
+		if(target < offsets[0]) {
+			return -countInstructions(target, offsets[0]);
+		}
+		if(target > offsets[last]) {
+			return last + countInstructions(offsets[last], target);
+		}
+		throw new IllegalStateException("Jump target " + target + " is not an instruction boundary");
+	}
+	
+	private int countInstructions(int from, int to) {
+		int count = 0;
+		while(from < to) {
+			from += DNXBytecode.lengthOf(data.get(from));
+			count++;
+		}
+		if(from != to) {
+			throw new IllegalStateException("Jump target " + to + " is not an instruction boundary");
+		}
+		return count;
+	}
+}
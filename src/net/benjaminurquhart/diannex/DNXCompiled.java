@@ -2,8 +2,10 @@ package net.benjaminurquhart.diannex;
 
 import java.awt.image.BufferedImage;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.function.IntFunction;
 
 import com.google.common.io.LittleEndianDataOutputStream;
 
@@ -11,76 +13,147 @@ public abstract class DNXCompiled implements IDNXSerializable {
 
 	public DNXString name;
 	protected int symbolPointer;
-	protected List<Integer> bytecodeIndicies;
+	protected int[] bytecodeIndicies;
 	
+	// While a lazily loaded entry is pending both are stand-ins, which decode
+	// it the first time they're used (see DNXFile#decode)
 	public List<DNXBytecode> instructions;
 	public List<DNXFlag> flags;
 	
-	// Only exists for bytecode list splitting during deserialization.
-	// Do not use.
-	
-	@Deprecated
-	protected DNXBytecode entryPoint;
-	
 	private boolean processed;
 	
+	// Set while the instructions of a lazily loaded entry are still undecoded.
+	// See DNXFile#map
+	protected volatile boolean pending;
+	
 	protected DNXCompiled() {
-		this.flags = new ArrayList<>();
-		this.instructions = new ArrayList<>();
-		this.bytecodeIndicies = new ArrayList<>();
+		this.flags = new DNXList<>();
+		this.instructions = new DNXList<>();
+		this.bytecodeIndicies = new int[0];
 	}
 	
 	protected void postProcess(DNXFile reader) {
-		DNXBytecode entry;
-		List<DNXBytecode> bytecode = new ArrayList<>();
 		name = reader.getStrings().get(symbolPointer);
+		if(reader.lazyCode != null) {
+			instructions = new DNXPendingList<>(reader, this, entry -> entry.instructions);
+			flags = new DNXPendingList<>(reader, this, entry -> entry.flags);
+			pending = true;
+		}
+	}
+	
+	// Fills in instructions and flags from the bytecode chunk at each entry point
+	protected void decode(IntFunction<List<DNXBytecode>> chunkAt) {
+		List<List<DNXBytecode>> chunks = new ArrayList<>();
 		for(int index : bytecodeIndicies) {
-			if(index < 0) continue;
-			entry = reader.bytecode.get(index);
-			reader.entryPoints.add(entry);
-			bytecode.add(entry);
+			if(index >= 0) {
+				chunks.add(chunkAt.apply(index));
+			}
 		}
-		if(!bytecode.isEmpty()) {
-			entryPoint = bytecode.get(0);
-			if(bytecode.size() > 1) {
-				if(bytecode.size() % 2 == 0) {
-					System.out.println(bytecode);
-					throw new IllegalStateException(String.format("%s %s has unpaired flags", this.getClass().getSimpleName(), name.getClean()));
-				}
-				DNXFlag flag;
-				for(int i = 1; i < bytecode.size(); i += 2) {
-					flag = new DNXFlag(bytecode.get(i+1), bytecode.get(i));
-					flags.add(flag);
-				}
+		List<DNXFlag> flags = new DNXList<>();
+		if(chunks.size() > 1) {
+			if(chunks.size() % 2 == 0) {
+				throw new IllegalStateException(String.format("%s %s has unpaired flags", this.getClass().getSimpleName(), name.getClean()));
+			}
+			for(int i = 1; i < chunks.size(); i += 2) {
+				flags.add(new DNXFlag(chunks.get(i+1), chunks.get(i)));
 			}
 		}
+		instructions = chunks.isEmpty() ? new DNXList<>() : chunks.get(0);
+		this.flags = flags;
 		processed = true;
+		pending = false;
+	}
+	
+	// Compact copy of the instructions. Entries that haven't been decoded yet
+	// are read straight from the file without creating any DNXBytecode objects.
+	public DNXCode getCode(DNXFile reader) {
+		return reader.codeOf(this);
 	}
 	
 	@Override
 	public int getLength() {
-		return flags.size() * 8 + 10;
+		return 6 + 4 * (pending ? bytecodeIndicies.length : flags.size() * 2 + 1);
 	}
 	
 	protected void markProcessed() {
 		processed = true;
 	}
 	
+	// Gives the copy its own instructions and flags in lists that can't be changed. See DNXFile#freeze
+	protected <T extends DNXCompiled> T freezeInto(T copy) {
+		copy.name = name;
+		copy.symbolPointer = symbolPointer;
+		copy.bytecodeIndicies = bytecodeIndicies.clone();
+		copy.instructions = freeze(instructions);
+		
+		DNXFlag[] flags = new DNXFlag[this.flags.size()];
+		DNXFlag flag;
+		for(int i = 0; i < flags.length; i++) {
+			flag = this.flags.get(i);
+			flags[i] = new DNXFlag(freeze(flag.keyBytecode), freeze(flag.valueBytecode));
+		}
+		copy.flags = DNXList.frozen(flags);
+		copy.markProcessed();
+		return copy;
+	}
+	
+	private static List<DNXBytecode> freeze(List<DNXBytecode> code) {
+		DNXBytecode[] out = new DNXBytecode[code.size()];
+		for(int i = 0; i < out.length; i++) {
+			out[i] = code.get(i).clone();
+		}
+		return DNXList.frozen(out);
+	}
+	
 	@Override
 	public void serialize(DNXFile reader, LittleEndianDataOutputStream buff) throws IOException {
-		buff.writeInt(reader.getStrings().indexOf(name));
-		buff.writeShort((short)(flags.size() * 2 + 1));
-		buff.writeInt(
-				instructions.isEmpty() ? -1 : 
-				reader.version >= 3 ? instructions.get(0).offset : 
-				reader.bytecode.indexOf(instructions.get(0))
-		);
-		for(DNXFlag flag : flags) {
-			flag.serialize(reader, buff);
+		serialize(reader, buff, positionsOf(reader));
+	}
+	
+	@Override
+	public void writeTo(DNXFile reader, ByteBuffer buffer) {
+		writeTo(reader, buffer, positionsOf(reader));
+	}
+	
+	private int[] positionsOf(DNXFile reader) {
+		reader.decode(this);
+		int[] positions = new int[flags.size() * 2 + 1];
+		positions[0] = positionOf(reader, instructions);
+		
+		DNXFlag flag;
+		for(int i = 0; i < flags.size(); i++) {
+			flag = flags.get(i);
+			positions[i * 2 + 1] = positionOf(reader, flag.valueBytecode);
+			positions[i * 2 + 2] = positionOf(reader, flag.keyBytecode);
 		}
+		return positions;
+	}
+	
+	// Writes the entry with its bytecode at the given positions, which are laid out like bytecodeIndicies
+	protected void serialize(DNXFile reader, LittleEndianDataOutputStream buff, int[] positions) throws IOException {
+		buff.writeInt(reader.indexOfString(name));
+		buff.writeShort((short)positions.length);
+		for(int position : positions) {
+			buff.writeInt(position);
+		}
+	}
+	
+	protected void writeTo(DNXFile reader, ByteBuffer buffer, int[] positions) {
+		buffer.putInt(reader.indexOfString(name));
+		buffer.putShort((short)positions.length);
+		for(int position : positions) {
+			buffer.putInt(position);
+		}
+	}
+	
+	protected static int positionOf(DNXFile reader, List<DNXBytecode> code) {
+		return code.isEmpty() ? -1 : 
+			   reader.version >= 3 ? code.get(0).offset : 
+			   reader.bytecode.indexOf(code.get(0));
 	}
 	
 	public String disassemble(DNXFile reader) {
+		reader.decode(this);
 		List<String> asm = DNXDisassembler.disassemble(this, reader);
 		
 		StringBuilder sb = new StringBuilder("; ");
@@ -110,6 +183,7 @@ public abstract class DNXCompiled implements IDNXSerializable {
 	}
 	
 	public BufferedImage graph(DNXFile reader) {
+		reader.decode(this);
 		return DNXDisassembler.renderGraph(this, reader);
 	}
 	
@@ -128,7 +202,7 @@ public abstract class DNXCompiled implements IDNXSerializable {
 			);
 		}
 		else {
-			size = bytecodeIndicies.size();
+			size = bytecodeIndicies.length;
 			return String.format(
 					"%s %s [%d bytecode %s]", 
 					this.getClass().getSimpleName(), 
@@ -2,7 +2,6 @@ package net.benjaminurquhart.diannex;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.util.ArrayList;
 import java.util.List;
 
 import com.google.common.io.LittleEndianDataOutputStream;
@@ -15,7 +14,7 @@ public class DNXDefinition extends DNXCompiled {
 	public DNXDefinition(ByteBuffer reader) {
 		symbolPointer = reader.getInt();
 		stringReference = reader.getInt();
-		bytecodeIndicies.add(reader.getInt());
+		bytecodeIndicies = new int[] { reader.getInt() };
 	}
 	
 	public DNXDefinition(DNXString name, DNXString reference, List<DNXBytecode> instructions) {
@@ -25,7 +24,7 @@ public class DNXDefinition extends DNXCompiled {
 	}
 	
 	public DNXDefinition(DNXString name, DNXString reference) {
-		this(name, reference, new ArrayList<>());
+		this(name, reference, new DNXList<>());
 	}
 	
 	public void postProcess(DNXFile reader) {
@@ -46,32 +45,40 @@ public class DNXDefinition extends DNXCompiled {
 	}
 	
 	@Override
-	public void serialize(DNXFile reader, LittleEndianDataOutputStream buff) throws IOException {
-		buff.writeInt(reader.getStrings().indexOf(name));
-		int strIndex = reader.getStrings().indexOf(reference);
-		int trIndex = reader.getTranslationStrings().indexOf(reference);
+	protected void serialize(DNXFile reader, LittleEndianDataOutputStream buff, int[] positions) throws IOException {
+		buff.writeInt(reader.indexOfString(name));
+		buff.writeInt(referenceOf(reader));
+		buff.writeInt(positions[0]);
+	}
+	
+	@Override
+	protected void writeTo(DNXFile reader, ByteBuffer buffer, int[] positions) {
+		buffer.putInt(reader.indexOfString(name));
+		buffer.putInt(referenceOf(reader));
+		buffer.putInt(positions[0]);
+	}
+	
+	// Encoded reference, adding it to the string table if it isn't in either table yet
+	private int referenceOf(DNXFile reader) {
+		int strIndex = reader.indexOfString(reference);
+		int trIndex = reader.indexOfTranslationString(reference);
 		
 		if(strIndex < 0 && trIndex < 0) {
 			strIndex = reader.getStrings().size();
 			reader.addString(reference);
 		}
 		if(strIndex >= 0) {
-			buff.writeInt(strIndex | (1 << 31));
+			return strIndex | (1 << 31);
 		}
 		else if(trIndex >= 0) {
-			buff.writeInt(trIndex);
+			return trIndex;
 		}
 		else {
 			throw new IllegalStateException("Floating reference: " + reference);
 		}
-		buff.writeInt(
-				instructions.isEmpty() ? -1 : 
-				reader.version >= 3 ? instructions.get(0).offset : 
-				reader.bytecode.indexOf(instructions.get(0))
-		);
 	}
 	
 	public String toString() {
-		return String.format("DNXDefinition %s [ref=%s, bytecode=%s]", name.get(), reference, instructions);
+		return String.format("DNXDefinition %s [ref=%s, bytecode=%s]", name.get(), reference, pending ? "(not decoded)" : instructions);
 	}
 }
@@ -69,30 +69,48 @@ public class DNXDisassembler {
 		return entry.instructions.stream().map(b -> b.toString(reader) + (JUMPS.contains(b.getOpcode()) ? "\n" : "")).collect(Collectors.toList());
 	}
 	
-	@SuppressWarnings("deprecation")
 	public static List<DNXBytecode> getBytecodeChunk(DNXCompiled entry, DNXFile reader) {
-		return getBytecodeChunk(entry.entryPoint, reader);
+		return reader.decode(entry).instructions;
 	}
 	
 	public static List<DNXBytecode> getBytecodeChunk(DNXBytecode entry, DNXFile reader) {
-		if(reader.ready) {
-			reader.regenerateBytecodeList();
+		if(!reader.ready) {
+			return getBytecodeChunk(entry, reader.bytecode, reader.entryPoints);
 		}
-		int entryIndex = reader.entryPoints.indexOf(entry);
+		DNXProgram program = reader.program();
+		int index = program.indexOfEntryPoint(entry);
+		if(index == -1) {
+			throw new IllegalArgumentException("Provided bytecode is not an entry point");
+		}
+		
+		List<DNXBytecode> out = new ArrayList<>();
+		do {
+			out.add(entry);
+			if(index >= program.bytecode.size() - 1) {
+				break;
+			}
+			entry = program.bytecode.get(++index);
+		} while(program.indexOfEntryPoint(entry) == -1);
+		
+		return out;
+	}
+	
+	private static List<DNXBytecode> getBytecodeChunk(DNXBytecode entry, List<DNXBytecode> bytecode, List<DNXBytecode> entryPoints) {
+		int entryIndex = entryPoints.indexOf(entry);
 		if(entryIndex == -1) {
 			throw new IllegalArgumentException("Provided bytecode is not an entry point");
 		}
 		
 		List<DNXBytecode> out = new ArrayList<>();
-		int index = reader.bytecode.indexOf(entry);
-		DNXBytecode next = entryIndex + 1 < reader.entryPoints.size() ? reader.entryPoints.get(entryIndex + 1) : null;
+		int index = bytecode.indexOf(entry);
+		DNXBytecode next = entryIndex + 1 < entryPoints.size() ? entryPoints.get(entryIndex + 1) : null;
 		
 		do {
 			out.add(entry);
-			if(index >= reader.bytecode.size() - 1) {
+			if(index >= bytecode.size() - 1) {
 				break;
 			}
-			entry = reader.bytecode.get(++index);
+			entry = bytecode.get(++index);
 		} while(entry != next);
 		
 		return out;
@@ -103,6 +121,7 @@ public class DNXDisassembler {
 		return Graphviz.fromString(digraph).render(Format.PNG).toImage();
 	}
 	
+	// The entry has to be decoded already, see DNXFile#decode
 	public static Map<Integer, Block> createBlocks(DNXCompiled dnx) {
 		List<DNXBytecode> code = dnx.instructions;
 		Map<DNXBytecode, Integer> addressMap = new HashMap<>();
@@ -1,29 +1,53 @@
 package net.benjaminurquhart.diannex;
 
 import com.google.common.io.LittleEndianDataOutputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.lang.reflect.Constructor;
-import java.lang.reflect.InvocationTargetException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
 import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
-import java.util.EnumSet;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Set;
-import java.util.function.Consumer;
-import java.util.zip.Deflater;
-import java.util.zip.Inflater;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.function.IntFunction;
+import java.util.function.Supplier;
 
 public class DNXFile {
 	
+	// How write makes sure the encoded file can be read back
+	public static enum Verification {
+		STRUCTURE, // walk the encoded sections, instructions and references before writing
+		NONE       // trust the encoder
+	}
+	
+	// Direct decoders for every record type stored in a file
+	private static final Map<Class<?>, Function<ByteBuffer, ?>> DECODERS = Map.of(
+			DNXScene.class, DNXScene::new,
+			DNXFunction.class, DNXFunction::new,
+			DNXDefinition.class, DNXDefinition::new,
+			DNXBytecode.class, DNXBytecode::new,
+			DNXString.class, DNXString::new
+	);
+	
+	// Section order within a file
+	protected static final int SCENES = 0, FUNCTIONS = 1, DEFINITIONS = 2, BYTECODE = 3, STRINGS = 4, TRANSLATIONS = 5, EXTERNALS = 6;
+	
+	// Strings are only split across workers in chunks of at least this many bytes
+	private static final int MIN_STRING_CHUNK_SIZE = 1 << 16;
+	
 	public final List<DNXScene> scenes;
 	public final List<DNXString> strings;
 	public final List<DNXString> translations;
@@ -38,8 +62,22 @@ public class DNXFile {
 	private final Map<String, DNXFunction> functionMap;
 	private final Map<String, DNXDefinition> definitionMap;
 	
+	private final DNXStringIndex stringIndex, translationIndex;
+	
+	// External translation packs by name, which runtime contexts can pick from
+	private final Map<String, DNXTranslationPack> translationPacks = new ConcurrentHashMap<>();
+	
 	protected final List<DNXBytecode> entryPoints;
 	
+	// Only set for lazily loaded files that still have undecoded entries
+	protected DNXCodeSection lazyCode;
+	
+	// File the above was mapped from, if any
+	protected File source;
+	
+	// Where each section starts relative to the start of the data, -1 if missing
+	protected final int[] sectionOffsets = new int[EXTERNALS + 1];
+	
 	private boolean compressed;
 	private boolean internalTranslationFile;
 	
@@ -49,13 +87,28 @@ public class DNXFile {
 	
 	private volatile boolean scenesDirty, functionsDirty, definitionsDirty;
 	
+	// Flattened bytecode as of the last getBytecode, see DNXProgram
+	private volatile DNXProgram program;
+	
+	// See getModificationCount
+	private final AtomicInteger modifications = new AtomicInteger();
+	
+	private final boolean frozen;
+	
+	private Verification verification = Verification.STRUCTURE;
+	
 	public DNXFile() {
-		scenes = new ArrayList<>();
-		strings = new ArrayList<>();
+		scenes = new DNXList<>();
+		DNXList<DNXString> strings = new DNXList<>();
+		DNXList<DNXString> translations = new DNXList<>();
+		this.strings = strings;
+		this.translations = translations;
 		bytecode = new ArrayList<>();
-		functions = new ArrayList<>();
-		definitions = new ArrayList<>();
-		translations = new ArrayList<>();
+		functions = new DNXList<>();
+		definitions = new DNXList<>();
+		
+		stringIndex = new DNXStringIndex(strings);
+		translationIndex = new DNXStringIndex(translations);
 		
 		sceneMap = new HashMap<>();
 		functionMap = new HashMap<>();
@@ -65,146 +118,213 @@ public class DNXFile {
 		externalFunctionNames = new ArrayList<>();
 		
 		version = 4;
+		frozen = false;
 		
+		ownLists();
+		ready = true;
+	}
+	
+	// See freeze
+	private DNXFile(DNXFile source) {
+		version = source.version;
+		compressed = source.compressed;
+		internalTranslationFile = source.internalTranslationFile;
+		Arrays.fill(sectionOffsets, -1);
+		translationPacks.putAll(source.translationPacks);
+		
+		strings = DNXList.frozen(source.strings);
+		translations = DNXList.frozen(source.translations);
+		externalFunctionNames = List.copyOf(source.externalFunctionNames);
+		
+		stringIndex = DNXStringIndex.frozen(strings);
+		translationIndex = DNXStringIndex.frozen(translations);
+		
+		List<DNXScene> scenes = new ArrayList<>(source.scenes.size());
+		for(DNXScene scene : source.scenes) {
+			scenes.add(scene.freezeInto(new DNXScene(scene.name)));
+		}
+		List<DNXFunction> functions = new ArrayList<>(source.functions.size());
+		for(DNXFunction function : source.functions) {
+			functions.add(function.freezeInto(new DNXFunction(function.name, null)));
+		}
+		List<DNXDefinition> definitions = new ArrayList<>(source.definitions.size());
+		for(DNXDefinition definition : source.definitions) {
+			definitions.add(definition.freezeInto(new DNXDefinition(definition.name, definition.reference, null)));
+		}
+		this.scenes = DNXList.frozen(scenes);
+		this.functions = DNXList.frozen(functions);
+		this.definitions = DNXList.frozen(definitions);
+		
+		Map<String, DNXScene> sceneMap = new HashMap<>();
+		Map<String, DNXFunction> functionMap = new HashMap<>();
+		Map<String, DNXDefinition> definitionMap = new HashMap<>();
+		rebuildMap(sceneMap, this.scenes);
+		rebuildMap(functionMap, this.functions);
+		rebuildMap(definitionMap, this.definitions);
+		this.sceneMap = Collections.unmodifiableMap(sceneMap);
+		this.functionMap = Collections.unmodifiableMap(functionMap);
+		this.definitionMap = Collections.unmodifiableMap(definitionMap);
+		
+		program = DNXProgram.of(this);
+		bytecode = program.bytecode;
+		entryPoints = program.entryPoints;
+		
+		// Only so that CodeImage notices the instruction setters, the lists themselves can't change
+		ownLists();
+		frozen = true;
 		ready = true;
 	}
 
 	public DNXFile(File file) throws IOException {
-		this(Files.readAllBytes(file.toPath()));
+		this(DNXHeader.load(file), false);
 	}
 	
 	public DNXFile(byte[] bytes) {
-		ByteBuffer reader = ByteBuffer.wrap(bytes);
-		reader.order(ByteOrder.BIG_ENDIAN);
+		this(ByteBuffer.wrap(bytes), false);
+	}
+	
+	// Maps the file into memory instead of reading it all at once. Only the
+	// entry tables and strings are read up front, instructions are decoded
+	// the first time an entry is looked up (or decode is called on it).
+	public static DNXFile map(File file) throws IOException {
+		try(FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			DNXFile out = new DNXFile(channel.map(MapMode.READ_ONLY, 0, channel.size()), true);
+			out.source = file;
+			return out;
+		}
+	}
+	
+	// Like map, but also keeps an image of the decompressed file in a sidecar
+	// next to it. Later loads of the same (unchanged) file map the image instead
+	// and skip decompressing and scanning it altogether.
+	public static DNXFile cached(File file) throws IOException {
+		return cached(file, new File(file.getPath() + ".image"));
+	}
+	
+	public static DNXFile cached(File file, File image) throws IOException {
+		return DNXImage.load(file, image);
+	}
+	
+	public DNXFile(ByteBuffer reader, boolean lazy) {
+		this(DNXHeader.load(reader), lazy);
+	}
+	
+	private DNXFile(DNXHeader header, boolean lazy) {
+		this(header, lazy, null);
+	}
+	
+	DNXFile(DNXHeader header, boolean lazy, DNXImage image) {
+		ByteBuffer reader = header.body;
+		frozen = false;
 		
 		try {
-			int header = reader.getInt();
-			version = header & 0xff;
-			if((header >> 8) != 0x444e58) {
-				throw new IllegalStateException(String.format(
-						"Unexpected DNX header: %c%c%c (v%d)", 
-						(header >> 24) & 0xff, 
-						(header >> 16) & 0xff, 
-						(header >> 8) & 0xff, 
-						version
-				));
-			}
+			version = header.version;
+			compressed = header.compressed;
+			internalTranslationFile = header.internalTranslationFile;
 			
-			if(version < 2 || version > 4) {
-				throw new IllegalStateException("Unsupported DNX version: " + version);
-			}
-			
-			reader.order(ByteOrder.LITTLE_ENDIAN);
-			byte flags = reader.get();
+			int size = header.size;
 			
-			compressed = (flags & 1) == 1;
-			internalTranslationFile = ((flags >> 1) & 1) == 1;
-			
-			int size = reader.getInt();
+			int pos = reader.position();
 			
-			//System.out.println("Input size: " + bytes.length);
-			//System.out.println("Size: " + size);
+			// v4 prefixes every section with its size in bytes, so all of them
+			// can be located up front and decoded at the same time. Older
+			// versions have to be read front to back.
+			boolean parallel = version >= 4;
+			Arrays.fill(sectionOffsets, -1);
+			if(image != null) {
+				System.arraycopy(image.sections, 0, sectionOffsets, 0, sectionOffsets.length);
+			}
+			ByteBuffer[] sections = image != null ? image.slices(reader) : parallel ? splitSections(reader) : null;
+			IntFunction<ByteBuffer> section = i -> {
+				if(sections != null) {
+					return sections[i];
+				}
+				sectionOffsets[i] = reader.position() - pos;
+				return reader;
+			};
 			
-			if(compressed) {
-				int compressedSize = reader.getInt();
-				byte[] zlib = new byte[compressedSize];
-				bytes = new byte[size];
-				//System.out.println("Compressed size: " + compressedSize);
-				reader.get(zlib);
-				
-				Inflater inflater = new Inflater(false);
-				inflater.setInput(zlib);
-				int newSize = inflater.inflate(bytes);
-				if(newSize != size) {
-					throw new IllegalArgumentException("Invalid compressed data: expected " + size + " bytes, got " + newSize);
+			// Create object shells
+			CompletableFuture<List<DNXScene>> sceneTask = submit(() -> readListOf(DNXScene.class, section.apply(SCENES)), parallel);
+			CompletableFuture<List<DNXFunction>> functionTask = submit(() -> readListOf(DNXFunction.class, section.apply(FUNCTIONS)), parallel);
+			CompletableFuture<List<DNXDefinition>> definitionTask = submit(() -> readListOf(DNXDefinition.class, section.apply(DEFINITIONS)), parallel);
+			CompletableFuture<List<DNXBytecode>> bytecodeTask = submit(() -> {
+				if(lazy) {
+					// Jumps are relocated per entry once they're decoded
+					lazyCode = new DNXCodeSection(section.apply(BYTECODE), version, image == null ? null : image.instructionOffsets);
+					return new ArrayList<>();
 				}
-				inflater.end();
-				
-				reader = ByteBuffer.wrap(bytes);
-				reader.order(ByteOrder.LITTLE_ENDIAN);
+				if(version >= 3) {
+					return readUnsizedListOf(DNXBytecode.class, section.apply(BYTECODE));
+				}
+				return readListOf(DNXBytecode.class, section.apply(BYTECODE));
+			}, parallel);
+			CompletableFuture<List<DNXString>> stringTask, translationTask;
+			if(image != null) {
+				stringTask = CompletableFuture.completedFuture(image.strings(section.apply(STRINGS), image.stringOffsets, version).strings());
+				translationTask = CompletableFuture.completedFuture(internalTranslationFile ? image.strings(section.apply(TRANSLATIONS), image.translationOffsets, version).strings() : new ArrayList<>());
+			}
+			else {
+				stringTask = readStrings(section.apply(STRINGS), parallel);
+				translationTask = internalTranslationFile ? readStrings(section.apply(TRANSLATIONS), parallel) : CompletableFuture.completedFuture(new ArrayList<>());
 			}
-			int pos = reader.position();
 			
-			// Create object shells
-			scenes = readListOf(DNXScene.class, reader);
-			functions = readListOf(DNXFunction.class, reader);
-			definitions = readListOf(DNXDefinition.class, reader);
+			scenes = new DNXList<>(sceneTask.join());
+			functions = new DNXList<>(functionTask.join());
+			definitions = new DNXList<>(definitionTask.join());
+			bytecode = bytecodeTask.join();
+			DNXList<DNXString> strings = new DNXList<>(stringTask.join());
+			DNXList<DNXString> translations = new DNXList<>(translationTask.join());
+			this.strings = strings;
+			this.translations = translations;
+			stringIndex = new DNXStringIndex(strings);
+			translationIndex = new DNXStringIndex(translations);
+			externalFunctionNames = new ArrayList<>();
 			
-			if(version >= 3) {
+			if(lazy) {
+				lazyCode.setEntryPoints(DNXCodeSection.entryPointsOf(scenes, functions, definitions));
+			}
+			else if(version >= 3) {
 				
 				// Convert byte offsets into indexes like in v2
 				
-				int offset = 0, index = 0;
-				Map<Integer, Integer> indexMapping = new HashMap<>();
-				Map<DNXBytecode, Integer> offsetMapping = new HashMap<>();
-				bytecode = readUnsizedListOf(DNXBytecode.class, reader);
-				
-				Set<DNXBytecode.Opcode> toPatch = EnumSet.of(
-						DNXBytecode.Opcode.J, 
-						DNXBytecode.Opcode.JT, 
-						DNXBytecode.Opcode.JF,
-						DNXBytecode.Opcode.CHOICEADD,
-						DNXBytecode.Opcode.CHOOSEADD,
-						DNXBytecode.Opcode.CHOICEADDT,
-						DNXBytecode.Opcode.CHOOSEADDT
-				);
+				int[] offsets = offsetsOf(bytecode);
 				
-				for(DNXBytecode entry : bytecode) {
-					//System.out.println(entry);
-					indexMapping.put(offset, index);
-					offsetMapping.put(entry, offset);
-					offset += entry.getLength();
-					index++;
-				}
-				
-				int selfOffset;
-				for(DNXBytecode entry : bytecode) {
-					if(toPatch.contains(entry.getOpcode())) {
-						selfOffset = offsetMapping.get(entry) + entry.getLength();
-						entry.setFirstArg(indexMapping.get(selfOffset + entry.getFirstArg()) - indexMapping.get(selfOffset) + 1);
+				DNXBytecode entry;
+				for(int i = 0; i < bytecode.size(); i++) {
+					entry = bytecode.get(i);
+					if(DNXBytecode.RELOCATABLE.contains(entry.getOpcode())) {
+						entry.relocate(indexAt(offsets, offsets[i + 1] + entry.getFirstArg()) - i);
 					}
 				}
 				
-				for(DNXScene entry : scenes) {
-					for(int i = 0; i < entry.bytecodeIndicies.size(); i++) {
-						entry.bytecodeIndicies.set(i, indexMapping.get(entry.bytecodeIndicies.get(i)));
-					}
+				for(DNXScene scene : scenes) {
+					relocateEntryPoints(scene, offsets);
 				}
-				
-				for(DNXFunction entry : functions) {
-					for(int i = 0, ind; i < entry.bytecodeIndicies.size(); i++) {
-						ind = entry.bytecodeIndicies.get(i);
-						if(ind != -1) {
-							entry.bytecodeIndicies.set(i, indexMapping.get(ind));
-						}
-					}
+				for(DNXFunction function : functions) {
+					relocateEntryPoints(function, offsets);
 				}
-				
-				for(DNXDefinition entry : definitions) {
-					for(int i = 0, ind; i < entry.bytecodeIndicies.size(); i++) {
-						ind = entry.bytecodeIndicies.get(i);
-						if(ind != -1) {
-							entry.bytecodeIndicies.set(i, indexMapping.get(ind));
-						}
-					}
+				for(DNXDefinition definition : definitions) {
+					relocateEntryPoints(definition, offsets);
 				}
 			}
-			else {
-				bytecode = readListOf(DNXBytecode.class, reader);
-			}
-			
-			strings = readListOf(DNXString.class, reader);
-			translations = internalTranslationFile ? readListOf(DNXString.class, reader) : new ArrayList<>();
-			externalFunctionNames = new ArrayList<>();
 			
 			if(version >= 3) {
+				ByteBuffer externals = section.apply(EXTERNALS);
 				if(version >= 4) {
-					reader.getInt();
+					externals.getInt();
 				}
 				
-				int listSize = reader.getInt();
+				int listSize = externals.getInt();
 				for(int i = 0; i < listSize; i++) {
-					externalFunctionNames.add(strings.get(reader.getInt()));
+					externalFunctionNames.add(strings.get(externals.getInt()));
+				}
+			}
+			
+			if(sections != null) {
+				for(int i = 0; i < sections.length; i++) {
+					if(sections[i] != null && sections[i].hasRemaining()) {
+						throw new IllegalStateException("Section " + i + " has " + sections[i].remaining() + " unread bytes");
+					}
 				}
 			}
 			
@@ -219,28 +339,34 @@ public class DNXFile {
 			functionMap = new HashMap<>();
 			definitionMap = new HashMap<>();
 			
-			// Populate fields
-			scenes.forEach(v -> {v.postProcess(this); sceneMap.put(v.name.get(), v);});
-			functions.forEach(v -> {v.postProcess(this); functionMap.put(v.name.get(), v);});
-			definitions.forEach(v -> {v.postProcess(this); definitionMap.put(v.name.get(), v);});
+			// Populate fields, the name maps are built on first lookup
+			scenes.forEach(v -> v.postProcess(this));
+			functions.forEach(v -> v.postProcess(this));
+			definitions.forEach(v -> v.postProcess(this));
+			scenesDirty = functionsDirty = definitionsDirty = true;
+			
+			if(lazy) {
+				ownLists();
+				ready = true;
+				return;
+			}
 			
-			entryPoints.sort((a,b) -> bytecode.indexOf(a) - bytecode.indexOf(b));
+			// Split the bytecode at every entry point in a single pass
+			int[] points = DNXCodeSection.entryPointsOf(scenes, functions, definitions);
+			List<List<DNXBytecode>> chunks = new ArrayList<>(points.length);
+			for(int i = 0; i < points.length; i++) {
+				chunks.add(bytecode.subList(points[i], i + 1 < points.length ? points[i + 1] : bytecode.size()));
+			}
 			
 			// Copy bytecode into objects
-			@SuppressWarnings("deprecation")
-			Consumer<DNXCompiled> copyBytecode = v -> {
-				v.instructions = v.entryPoint == null ? new ArrayList<>() : DNXDisassembler.getBytecodeChunk(v, this);
-				for(DNXFlag flag : v.flags) {
-					flag.valueBytecode = flag.value == null ? new ArrayList<>() : DNXDisassembler.getBytecodeChunk(flag.value, this);
-					flag.keyBytecode = flag.key == null ? new ArrayList<>() : DNXDisassembler.getBytecodeChunk(flag.key, this);
-				}
-			};
+			IntFunction<List<DNXBytecode>> chunkAt = index -> new DNXList<>(chunks.get(Arrays.binarySearch(points, index)));
 			
-			scenes.forEach(copyBytecode);
-			functions.forEach(copyBytecode);
-			definitions.forEach(copyBytecode);
+			scenes.forEach(v -> v.decode(chunkAt));
+			functions.forEach(v -> v.decode(chunkAt));
+			definitions.forEach(v -> v.decode(chunkAt));
 			
 			//System.out.println();
+			ownLists();
 			ready = true;
 		}
 		catch(Exception e) {
@@ -248,189 +374,296 @@ public class DNXFile {
 		}
 	}
 	
-	public synchronized void regenerateBytecodeList() {
-		entryPoints.clear();
-		bytecode.clear();
-		
-		Consumer<List<DNXBytecode>> add = list -> {
-			if(!list.isEmpty()) {
-				entryPoints.add(list.get(0));
+	public <T extends DNXCompiled> T decode(T entry) {
+		if(entry != null && entry.pending) {
+			synchronized(this) {
+				if(entry.pending) {
+					entry.decode(lazyCode::decode);
+					adopt(entry);
+				}
 			}
-			bytecode.addAll(list);
-		};
-		
-		for(DNXScene scene : scenes) {
-			add.accept(scene.instructions);
-			for(DNXFlag flag : scene.flags) {
-				add.accept(flag.valueBytecode);
-				add.accept(flag.keyBytecode);
+		}
+		return entry;
+	}
+	
+	protected DNXCode codeOf(DNXCompiled entry) {
+		if(entry.pending) {
+			synchronized(this) {
+				if(entry.pending) {
+					for(int index : entry.bytecodeIndicies) {
+						if(index >= 0) {
+							return lazyCode.decodeCode(index);
+						}
+					}
+					return DNXCode.of(Collections.emptyList());
+				}
+			}
+		}
+		return DNXCode.of(entry.instructions);
+	}
+	
+	public synchronized void decodeAll() {
+		if(lazyCode == null) {
+			return;
+		}
+		scenes.forEach(this::decode);
+		functions.forEach(this::decode);
+		definitions.forEach(this::decode);
+		lazyCode = null;
+	}
+	
+	// Only rebuilds the list if an entry's instructions or flags changed since the last time
+	public synchronized void regenerateBytecodeList() {
+		program();
+	}
+	
+	// Forces the next regenerateBytecodeList/getBytecode to rebuild from scratch, and
+	// anything else built from the file to notice. Changes to the file's lists and
+	// instructions are picked up without this (see getModificationCount), but assigning
+	// an entry's instructions or flags isn't, so call this after doing that.
+	public void invalidateBytecode() {
+		if(!frozen) {
+			program = null;
+			modified();
+		}
+	}
+	
+	protected DNXProgram program() {
+		DNXProgram out = program;
+		if(frozen || out != null && out.isCurrent(this)) {
+			return out;
+		}
+		synchronized(this) {
+			// Taken first, so changes made while checking or building are caught next time
+			int stamp = modifications.get();
+			out = program;
+			if(out != null && lazyCode == null && out.matches(this)) {
+				out.stamp = stamp;
+				return out;
 			}
+			decodeAll();
+			out = DNXProgram.of(this);
+			out.stamp = stamp;
+			
+			bytecode.clear();
+			bytecode.addAll(out.bytecode);
+			entryPoints.clear();
+			entryPoints.addAll(out.entryPoints);
+			program = out;
+			return out;
 		}
-		for(DNXFunction function : functions) {
-			add.accept(function.instructions);
+	}
+	
+	// Number of changes made to the file's lists (entries, strings, and the instructions
+	// and flags of its entries) and through the setters of its instructions. Anything built
+	// from the file can compare it to tell whether it's still current.
+	public int getModificationCount() {
+		return modifications.get();
+	}
+	
+	protected void modified() {
+		modifications.incrementAndGet();
+	}
+	
+	// Called for whatever goes in one of the file's lists, so that changing it (or
+	// anything in it) counts as a change to the file. Lists other than DNXLists can't
+	// be tracked, DNXProgram and CodeImage compare those in full.
+	protected void adopt(Object element) {
+		if(element instanceof DNXBytecode) {
+			((DNXBytecode)element).owner = this;
 		}
-		for(DNXDefinition definition : definitions) {
-			add.accept(definition.instructions);
+		else if(element instanceof DNXCompiled) {
+			own(((DNXCompiled)element).instructions);
+			own(((DNXCompiled)element).flags);
 		}
-
-
-		
-		Set<DNXBytecode> bytecodeSet = new HashSet<>(bytecode);
-		if(bytecodeSet.size() != bytecode.size()) {
-			throw new IllegalStateException((bytecode.size() - bytecodeSet.size()) + " duplicate bytecode elements");
+		else if(element instanceof DNXFlag) {
+			own(((DNXFlag)element).valueBytecode);
+			own(((DNXFlag)element).keyBytecode);
 		}
-		
-		// Used for serialization
-		int offset = 0;
-		for(DNXBytecode entry : bytecode) {
-			entry.offset = offset;
-			offset += entry.getLength();
+	}
+	
+	private void own(List<?> list) {
+		if(list instanceof DNXList) {
+			((DNXList<?>)list).setOwner(this);
 		}
 	}
 	
+	private void ownLists() {
+		own(scenes);
+		own(functions);
+		own(definitions);
+		own(strings);
+		own(translations);
+	}
+	
 	public List<DNXBytecode> getBytecode() {
-		this.regenerateBytecodeList();
-		return Collections.unmodifiableList(bytecode);
+		return program().bytecode;
+	}
+	
+	// Index of the first instruction of an entry (or flag) within getBytecode, -1 if it isn't one
+	public int indexOfEntryPoint(DNXBytecode entry) {
+		return program().indexOfEntryPoint(entry);
+	}
+	
+	// Immutable copy of the file that any number of threads can read from without
+	// locking: every entry decoded, every lookup table built up front, and none
+	// of the lists shared with this file. Editing carries on here as usual and
+	// doesn't show up in the copy. Anything that would change one of the copy's
+	// lists throws an UnsupportedOperationException. That's as far as it goes:
+	// entries' public fields (name, instructions, flags) can still be assigned
+	// and instructions still have their setters, so don't touch those on a copy.
+	public DNXFile freeze() {
+		if(frozen) {
+			return this;
+		}
+		synchronized(this) {
+			decodeAll();
+			return new DNXFile(this);
+		}
+	}
+	
+	public boolean isFrozen() {
+		return frozen;
+	}
+	
+	public Verification getVerification() {
+		return verification;
+	}
+	
+	public void setVerification(Verification verification) {
+		this.verification = Objects.requireNonNull(verification);
 	}
 	
 	public void write(File file) throws IOException {
 		compressed = false;
-		//System.out.println("Serializing...");
 		
-		regenerateBytecodeList();
+		// Code that was never decoded gets copied from the source as is
+		DNXCodeLayout code = new DNXCodeLayout(this);
+		scenes.forEach(code::add);
+		functions.forEach(code::add);
+		definitions.forEach(code::add);
 		
-		ByteArrayOutputStream rawStream = new ByteArrayOutputStream();
-		LittleEndianDataOutputStream stream = new LittleEndianDataOutputStream(rawStream);
+		DNXOutputBuffer out = new DNXOutputBuffer(sizeOf(code));
+		LittleEndianDataOutputStream stream = new LittleEndianDataOutputStream(out);
 		
-		List<DNXBytecode> bytecode = new ArrayList<>(this.bytecode.size());
+		stream.write(0x44); // D
+		stream.write(0x4e); // N
+		stream.write(0x58); // X
+		stream.write(version);
 		
-		for(DNXBytecode entry : this.bytecode) {
-			bytecode.add(entry.clone());
-		}
-		
-		if(version >= 3) {
-			int offset = 0, index = 0;
-			Map<Integer, Integer> offsetMapping = new HashMap<>();
-			Map<DNXBytecode, Integer> bytecodeMapping = new HashMap<>();
-			
-			for(DNXBytecode entry : bytecode) {
-				bytecodeMapping.put(entry, offset);
-				offsetMapping.put(index, offset);
-				offset += entry.getLength();
-				index++;
-			}
-			
-			Set<DNXBytecode.Opcode> toPatch = EnumSet.of(
-					DNXBytecode.Opcode.J, 
-					DNXBytecode.Opcode.JT, 
-					DNXBytecode.Opcode.JF,
-					DNXBytecode.Opcode.CHOICEADD,
-					DNXBytecode.Opcode.CHOOSEADD,
-					DNXBytecode.Opcode.CHOICEADDT,
-					DNXBytecode.Opcode.CHOOSEADDT
-			);
-			
-			index = 0;
-			for(DNXBytecode entry : bytecode) {
-				if(toPatch.contains(entry.getOpcode())) {
-					entry.setFirstArg(offsetMapping.get(index + entry.getFirstArg()) - bytecodeMapping.get(entry) - entry.getLength());
-				}
-				index++;
-			}
-		}
+		// Flags and size are patched in once everything else has been written
+		stream.write(0);
+		stream.writeInt(0);
 		
-		writeList(stream, scenes);
-		writeList(stream, functions);
-		writeList(stream, definitions);
+		int start = out.position();
 		
-		if(version >= 3) {
-			writeUnsizedList(stream, bytecode);
-		}
-		else {
-			writeList(stream, bytecode);
-		}
+		writeEntries(out, stream, scenes, code);
+		writeEntries(out, stream, functions, code);
+		writeEntries(out, stream, definitions, code);
+		code.write(out, stream);
 		
-		writeList(stream, strings);
+		writeList(out, stream, strings);
 		
 		if(internalTranslationFile) {
-			writeList(stream, translations);
+			writeList(out, stream, translations);
 		}
 		
 		if(version >= 3) {
-			
-			ByteArrayOutputStream buffer = null;
-			LittleEndianDataOutputStream orig = null;
-			
-			if(version >= 4) {
-				orig = stream;
-				buffer = new ByteArrayOutputStream();
-				stream = new LittleEndianDataOutputStream(buffer);
-			}
-			
+			int section = beginSection(out, stream);
 			stream.writeInt(externalFunctionNames.size());
 			for(DNXString entry : externalFunctionNames) {
-				stream.writeInt(strings.indexOf(entry));
-			}
-			
-			if(version >= 4) {
-				stream.close();
-				byte[] bytes = buffer.toByteArray();
-				
-				orig.writeInt(bytes.length);
-				orig.write(bytes);
-				
-				stream = orig;
+				stream.writeInt(indexOfString(entry));
 			}
+			endSection(out, section);
 		}
 		
-		rawStream.flush();
-		stream.flush();
-		LittleEndianDataOutputStream fileStream = new LittleEndianDataOutputStream(new FileOutputStream(file));
+		out.put(4, (byte)((compressed ? 1 : 0) | ((internalTranslationFile ? 1 : 0) << 1)));
+		out.putInt(5, out.position() - start);
 		
-		fileStream.write(0x44); // D
-		fileStream.write(0x4e); // N
-		fileStream.write(0x58); // X
-		fileStream.write(version);
-		
-		int flags = (compressed ? 1 : 0) | ((internalTranslationFile ? 1 : 0) << 1);
-		fileStream.write(flags);
+		// Checked before anything touches the disk, so a bad encode never replaces a good file
+		if(verification == Verification.STRUCTURE) {
+			DNXVerifier.verify(out.contents());
+		}
 		
-		fileStream.writeInt(rawStream.size());
+		// Overwriting the file this was mapped from would pull the rest of the code out from under us
+		if(lazyCode != null && source != null && file.exists() && Files.isSameFile(source.toPath(), file.toPath())) {
+			lazyCode.detach();
+		}
 		
-		if(compressed) {
-			Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION, false);
-			deflater.setInput(rawStream.toByteArray());
-			rawStream.reset();
-			
-			int compressedSize = 0, read;
-			byte[] bytes = new byte[1024];
-			while((read = deflater.deflate(bytes)) > 0 && !deflater.needsInput()) {
-				compressedSize += read;
-				rawStream.write(bytes, 0, read);
-				
-				//System.out.println(compressedSize + " " + read);
+		try(FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			out.writeTo(channel);
+		}
+	}
+	
+	private static <T> CompletableFuture<T> submit(Supplier<T> task, boolean parallel) {
+		return parallel ? CompletableFuture.supplyAsync(task) : CompletableFuture.completedFuture(task.get());
+	}
+	
+	private ByteBuffer[] splitSections(ByteBuffer reader) {
+		ByteBuffer[] sections = new ByteBuffer[EXTERNALS + 1];
+		int base = reader.position();
+		for(int i = 0, start, length; i < sections.length; i++) {
+			if(i == TRANSLATIONS && !internalTranslationFile) {
+				continue;
 			}
-			deflater.end();
-			fileStream.writeInt(compressedSize);
+			start = reader.position();
+			sectionOffsets[i] = start - base;
+			length = reader.getInt(start) + 4;
+			sections[i] = reader.slice(start, length).order(ByteOrder.LITTLE_ENDIAN);
+			reader.position(start + length);
 		}
-		
-		fileStream.write(rawStream.toByteArray());
-		fileStream.flush();
-		
-		fileStream.close();
-		rawStream.close();
-		stream.close();
-		
-		try {
-			new DNXFile(file);
+		return sections;
+	}
+	
+	// Strings are NUL terminated, so a large table can be cut at the first
+	// terminator after each split point and the pieces decoded separately
+	private CompletableFuture<List<DNXString>> readStrings(ByteBuffer reader, boolean parallel) {
+		if(version >= 4) {
+			reader.getInt();
 		}
-		catch(Exception e) {
-			throw new IllegalStateException("Did not serialize file correctly!", e.getCause());
+		int size = reader.getInt();
+		if(!parallel) {
+			return CompletableFuture.completedFuture(new DNXStringTable(reader, size).strings());
 		}
+		int start = reader.position(), end = reader.limit();
+		int workers = Math.max(1, Math.min(ForkJoinPool.getCommonPoolParallelism(), (end - start) / MIN_STRING_CHUNK_SIZE));
+		
+		List<CompletableFuture<List<DNXString>>> tasks = new ArrayList<>(workers);
+		for(int i = 0, from = start, to; i < workers; i++, from = to) {
+			to = i == workers - 1 ? end : Math.max(from, start + (int)((long)(end - start) * (i + 1) / workers));
+			while(to < end && reader.get(to) != 0) {
+				to++;
+			}
+			to = Math.min(to + 1, end);
+			
+			ByteBuffer chunk = reader.slice(from, to - from);
+			tasks.add(CompletableFuture.supplyAsync(() -> new DNXStringTable(chunk, -1).strings()));
+		}
+		reader.position(end);
+		
+		return CompletableFuture.allOf(tasks.toArray(CompletableFuture[]::new)).thenApply(v -> {
+			List<DNXString> out = new ArrayList<>(size);
+			for(CompletableFuture<List<DNXString>> task : tasks) {
+				out.addAll(task.join());
+			}
+			if(out.size() != size) {
+				throw new IllegalStateException("Expected " + size + " strings, read " + out.size());
+			}
+			return out;
+		});
 	}
 	
-	private <T> List<T> readListOf(Class<T> clazz, ByteBuffer reader) throws NoSuchMethodException, SecurityException, InstantiationException, IllegalAccessException, IllegalArgumentException, InvocationTargetException {
-		Constructor<T> constructor = clazz.getConstructor(ByteBuffer.class);
+	@SuppressWarnings("unchecked")
+	private static <T> Function<ByteBuffer, T> decoderFor(Class<T> clazz) {
+		Function<ByteBuffer, ?> decoder = DECODERS.get(clazz);
+		if(decoder == null) {
+			throw new IllegalArgumentException("No decoder for " + clazz.getName());
+		}
+		return (Function<ByteBuffer, T>)decoder;
+	}
+	
+	private <T> List<T> readListOf(Class<T> clazz, ByteBuffer reader) {
+		Function<ByteBuffer, T> decoder = decoderFor(clazz);
 		List<T> out = new ArrayList<>();
 		
 		if(version >= 4) {
@@ -441,62 +674,107 @@ public class DNXFile {
 		int size = reader.getInt();
 		//System.out.printf("Reading list of %s with %d elements\n", clazz, size);
 		for(int i = 0; i < size; i++) {
-			out.add(constructor.newInstance(reader));
+			out.add(decoder.apply(reader));
 		}
 		return out;
 	}
 	
-	private <T> List<T> readUnsizedListOf(Class<T> clazz, ByteBuffer reader) throws NoSuchMethodException, SecurityException, InstantiationException, IllegalAccessException, IllegalArgumentException, InvocationTargetException {
-		Constructor<T> constructor = clazz.getConstructor(ByteBuffer.class);
+	private <T> List<T> readUnsizedListOf(Class<T> clazz, ByteBuffer reader) {
+		Function<ByteBuffer, T> decoder = decoderFor(clazz);
 		List<T> out = new ArrayList<>();
 		int numBytes = reader.getInt();
 		int position = reader.position();
 		
 		while(reader.position() - position < numBytes) {
-			out.add(constructor.newInstance(reader));
+			out.add(decoder.apply(reader));
 		}
 		return out;
 	}
 	
-	private <T extends IDNXSerializable> void writeList(LittleEndianDataOutputStream stream, List<T> list) throws IOException {
-		ByteArrayOutputStream buffer = null;
-		LittleEndianDataOutputStream orig = null;
-		
-		if(version >= 4) {
-			orig = stream;
-			buffer = new ByteArrayOutputStream();
-			stream = new LittleEndianDataOutputStream(buffer);
+	// Size of the file write is about to produce. Only off if a definition has to
+	// add its reference to the string table while being written.
+	private int sizeOf(DNXCodeLayout code) {
+		long size = 9L + code.size();
+		size += sizeOf(scenes) + sizeOf(functions) + sizeOf(definitions);
+		size += sizeOf(strings);
+		if(internalTranslationFile) {
+			size += sizeOf(translations);
 		}
-		
+		if(version >= 3) {
+			size += (version >= 4 ? 8 : 4) + externalFunctionNames.size() * 4L;
+		}
+		return (int)Math.min(size, Integer.MAX_VALUE - 8);
+	}
+	
+	// Size of a whole section, including its count (and size in v4)
+	private long sizeOf(List<? extends IDNXSerializable> list) {
+		long size = version >= 4 ? 8 : 4;
+		for(IDNXSerializable element : list) {
+			size += element.getLength();
+		}
+		return size;
+	}
+	
+	// v4 prefixes sections with their size, which is filled in by endSection
+	private int beginSection(DNXOutputBuffer out, LittleEndianDataOutputStream stream) throws IOException {
+		if(version < 4) {
+			return -1;
+		}
+		int start = out.position();
+		stream.writeInt(0);
+		return start;
+	}
+	
+	private void endSection(DNXOutputBuffer out, int start) {
+		if(start >= 0) {
+			out.putInt(start, out.position() - start - 4);
+		}
+	}
+	
+	private <T extends IDNXSerializable> void writeList(DNXOutputBuffer out, LittleEndianDataOutputStream stream, List<T> list) throws IOException {
+		int section = beginSection(out, stream);
 		stream.writeInt(list.size());
 		for(T element : list) {
-			element.serialize(this, stream);
-			stream.flush();
-		}
-		
-		if(version >= 4) {
-			stream.close();
-			byte[] bytes = buffer.toByteArray();
-			
-			orig.writeInt(bytes.length);
-			orig.write(bytes);
+			element.writeTo(this, out.reserve(element.getLength()));
 		}
+		endSection(out, section);
 	}
 	
-	private <T extends IDNXSerializable> void writeUnsizedList(LittleEndianDataOutputStream stream, List<T> list) throws IOException {
-		ByteArrayOutputStream buffer = new ByteArrayOutputStream();
-		LittleEndianDataOutputStream tmp = new LittleEndianDataOutputStream(buffer);
-		
+	private <T extends DNXCompiled> void writeEntries(DNXOutputBuffer out, LittleEndianDataOutputStream stream, List<T> list, DNXCodeLayout code) throws IOException {
+		int section = beginSection(out, stream);
+		stream.writeInt(list.size());
+		int[] positions;
 		for(T element : list) {
-			element.serialize(this, tmp);
-			tmp.flush();
+			positions = code.positionsOf(element);
+			element.writeTo(this, out.reserve(element.getLength()), positions);
+		}
+		endSection(out, section);
+	}
+	
+	// Byte offset of every instruction, followed by the total size
+	private static int[] offsetsOf(List<DNXBytecode> bytecode) {
+		int[] offsets = new int[bytecode.size() + 1];
+		for(int i = 0; i < bytecode.size(); i++) {
+			offsets[i + 1] = offsets[i] + bytecode.get(i).getLength();
+		}
+		return offsets;
+	}
+	
+	private static int indexAt(int[] offsets, int offset) {
+		int index = Arrays.binarySearch(offsets, offset);
+		if(index < 0) {
+			throw new IllegalStateException("Offset " + offset + " is not an instruction boundary");
+		}
+		return index;
+	}
+	
+	private static void relocateEntryPoints(DNXCompiled entry, int[] offsets) {
+		int[] indicies = entry.bytecodeIndicies;
+		for(int i = 0; i < indicies.length; i++) {
+			if(indicies[i] != -1) {
+				indicies[i] = indexAt(offsets, indicies[i]);
+			}
 		}
-		
-		tmp.close();
-		byte[] bytes = buffer.toByteArray();
-		
-		stream.writeInt(bytes.length);
-		stream.write(bytes);
 	}
 	
 	private <T> void addNonNullUnique(List<T> list, T element) {
@@ -513,13 +791,11 @@ public class DNXFile {
 		if(content == null) {
 			throw new IllegalArgumentException("Cannot create null DNXString");
 		}
-		for(DNXString s : strings) {
-			if(s.get().equals(content)) {
-				return s;
-			}
+		DNXString s = stringIndex.find(content);
+		if(s == null) {
+			s = new DNXString(content);
+			strings.add(s);
 		}
-		DNXString s = new DNXString(content);
-		strings.add(s);
 		return s;
 	}
 	
@@ -528,20 +804,45 @@ public class DNXFile {
 			throw new IllegalArgumentException("Cannot create null DNXString");
 		}
 		internalTranslationFile = true;
-		for(DNXString s : translations) {
-			if(s.get().equals(content)) {
-				return s;
-			}
+		DNXString s = translationIndex.find(content);
+		if(s == null) {
+			s = new DNXString(content);
+			translations.add(s);
 		}
-		DNXString s = new DNXString(content);
-		translations.add(s);
 		return s;
 	}
 	
+	public int indexOfString(DNXString string) {
+		return stringIndex.indexOf(string);
+	}
+	
+	public int indexOfTranslationString(DNXString string) {
+		return translationIndex.indexOf(string);
+	}
+	
 	public List<DNXString> getTranslationStrings() {
 		return Collections.unmodifiableList(translations);
 	}
 	
+	// The pack isn't read until one of its strings is needed
+	public DNXTranslationPack addTranslationPack(String name, File file) {
+		DNXTranslationPack pack = new DNXTranslationPack(file);
+		translationPacks.put(name, pack);
+		return pack;
+	}
+	
+	public DNXTranslationPack getTranslationPack(String name) {
+		return translationPacks.get(name);
+	}
+	
+	public DNXTranslationPack removeTranslationPack(String name) {
+		return translationPacks.remove(name);
+	}
+	
+	public Set<String> getTranslationPackNames() {
+		return Collections.unmodifiableSet(translationPacks.keySet());
+	}
+	
 	public List<DNXDefinition> getDefinitions() {
 		return Collections.unmodifiableList(definitions);
 	}
@@ -566,7 +867,12 @@ public class DNXFile {
 	}
 	
 	public void addTranslationString(DNXString string) {
-		addNonNullUnique(translations, string);
+		if(string == null) {
+			throw new IllegalArgumentException("null value");
+		}
+		if(translationIndex.indexOf(string) < 0) {
+			translations.add(string);
+		}
 		internalTranslationFile = true;
 	}
 	
@@ -577,7 +883,12 @@ public class DNXFile {
 	}
 	
 	public void addString(DNXString string) {
-		addNonNullUnique(strings, string);
+		if(string == null) {
+			throw new IllegalArgumentException("null value");
+		}
+		if(stringIndex.indexOf(string) < 0) {
+			strings.add(string);
+		}
 	}
 	
 	public void addFunction(DNXFunction function) {
@@ -593,17 +904,17 @@ public class DNXFile {
 	
 	public DNXDefinition definitionByName(String name) {
 		if(definitionsDirty) rebuildDefinitionMap();
-		return definitionMap.get(name);
+		return decode(definitionMap.get(name));
 	}
 	
 	public DNXFunction functionByName(String name) {
 		if(functionsDirty) rebuildFunctionMap();
-		return functionMap.get(name);
+		return decode(functionMap.get(name));
 	}
 	
 	public DNXScene sceneByName(String name) {
 		if(scenesDirty) rebuildSceneMap();
-		return sceneMap.get(name);
+		return decode(sceneMap.get(name));
 	}
 	
 	private <T extends DNXCompiled> void rebuildMap(Map<String, T> map, List<T> list) {
@@ -613,18 +924,26 @@ public class DNXFile {
 		}
 	}
 	
-	private void rebuildSceneMap() {
-		scenesDirty = false;
-		rebuildMap(sceneMap, scenes);
+	// The first lookups can come from several threads at once (parallel scenes, the
+	// runtime), so only one of them rebuilds and the flag is cleared once it's done
+	private synchronized void rebuildSceneMap() {
+		if(scenesDirty) {
+			rebuildMap(sceneMap, scenes);
+			scenesDirty = false;
+		}
 	}
 	
-	private void rebuildFunctionMap() {
-		functionsDirty = false;
-		rebuildMap(functionMap, functions);
+	private synchronized void rebuildFunctionMap() {
+		if(functionsDirty) {
+			rebuildMap(functionMap, functions);
+			functionsDirty = false;
+		}
 	}
 	
-	private void rebuildDefinitionMap() {
-		definitionsDirty = false;
-		rebuildMap(definitionMap, definitions);
+	private synchronized void rebuildDefinitionMap() {
+		if(definitionsDirty) {
+			rebuildMap(definitionMap, definitions);
+			definitionsDirty = false;
+		}
 	}
 }
@@ -1,27 +1,17 @@
 package net.benjaminurquhart.diannex;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.List;
 
 import com.google.common.io.LittleEndianDataOutputStream;
 
 public class DNXFlag implements IDNXSerializable {
 
-	// See DNXCompiled#entryPoint
-	@Deprecated
-	protected DNXBytecode key;
-	@Deprecated
-	protected DNXBytecode value;
-	
 	public List<DNXBytecode> keyBytecode, valueBytecode;
 	
 	public DNXFlag() {}
 	
-	protected DNXFlag(DNXBytecode key, DNXBytecode value) {
-		this.value = value;
-		this.key = key;
-	}
-	
 	public DNXFlag(List<DNXBytecode> key, List<DNXBytecode> value) {
 		valueBytecode = value;
 		keyBytecode = key;
@@ -34,16 +24,14 @@ public class DNXFlag implements IDNXSerializable {
 	
 	@Override
 	public void serialize(DNXFile reader, LittleEndianDataOutputStream buff) throws IOException {
-		buff.writeInt(
-				valueBytecode.isEmpty() ? -1 : 
-				reader.version >= 3 ? valueBytecode.get(0).offset : 
-				reader.bytecode.indexOf(valueBytecode.get(0))
-		);
-		buff.writeInt(
-				keyBytecode.isEmpty() ? -1 : 
-				reader.version >= 3 ? keyBytecode.get(0).offset : 
-				reader.bytecode.indexOf(keyBytecode.get(0))
-		);
+		buff.writeInt(DNXCompiled.positionOf(reader, valueBytecode));
+		buff.writeInt(DNXCompiled.positionOf(reader, keyBytecode));
+	}
+	
+	@Override
+	public void writeTo(DNXFile reader, ByteBuffer buffer) {
+		buffer.putInt(DNXCompiled.positionOf(reader, valueBytecode));
+		buffer.putInt(DNXCompiled.positionOf(reader, keyBytecode));
 	}
 	
 	public String getPretty(DNXFile reader) {
@@ -68,9 +56,6 @@ public class DNXFlag implements IDNXSerializable {
 		if(valueBytecode != null && !valueBytecode.isEmpty()) {
 			return valueBytecode.get(0).toString(reader);
 		}
-		else if(value != null) {
-			return value.toString(reader);
-		}
 		return null;
 	}
 	
@@ -78,9 +63,6 @@ public class DNXFlag implements IDNXSerializable {
 		if(keyBytecode != null && !keyBytecode.isEmpty()) {
 			return keyBytecode.get(0).toString(reader);
 		}
-		else if(key != null) {
-			return key.toString(reader);
-		}
 		return null;
 	}
 	
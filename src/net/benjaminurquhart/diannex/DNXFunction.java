@@ -7,9 +7,9 @@ public class DNXFunction extends DNXCompiled {
 	
 	public DNXFunction(ByteBuffer reader) {
 		symbolPointer = reader.getInt();
-		int size = reader.getShort();
-		for(int i = 0; i < size; i++) {
-			bytecodeIndicies.add(reader.getInt());
+		bytecodeIndicies = new int[reader.getShort()];
+		for(int i = 0; i < bytecodeIndicies.length; i++) {
+			bytecodeIndicies[i] = reader.getInt();
 		}
 	}
 	
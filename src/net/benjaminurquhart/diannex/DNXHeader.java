@@ -0,0 +1,200 @@
+package net.benjaminurquhart.diannex;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+// The fixed part at the start of every .dxb file, optionally along with
+// the (decompressed) data that follows it.
+class DNXHeader {
+	
+	private static final int INFLATE_CHUNK_SIZE = 1 << 16;
+	
+	protected int version;
+	protected boolean compressed, internalTranslationFile;
+	
+	// Size of the data following the header once decompressed
+	protected int size;
+	protected int compressedSize = -1;
+	
+	// Little endian view of the decompressed data, only set by load
+	protected ByteBuffer body;
+	
+	private DNXHeader() {}
+	
+	// Already decompressed data
+	protected DNXHeader(int version, boolean internalTranslationFile, ByteBuffer body) {
+		this.version = version;
+		this.internalTranslationFile = internalTranslationFile;
+		this.size = body.remaining();
+		this.body = body.order(ByteOrder.LITTLE_ENDIAN);
+	}
+	
+	// Same header over its own view of the body, so it can be read more than once
+	protected DNXHeader duplicate() {
+		DNXHeader out = new DNXHeader();
+		out.version = version;
+		out.compressed = compressed;
+		out.internalTranslationFile = internalTranslationFile;
+		out.size = size;
+		out.compressedSize = compressedSize;
+		out.body = body == null ? null : body.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+		return out;
+	}
+	
+	protected int getLength() {
+		return compressed ? 13 : 9;
+	}
+	
+	// Reads the header and leaves the reader positioned right after it
+	protected static DNXHeader read(ByteBuffer reader) {
+		DNXHeader out = new DNXHeader();
+		reader.order(ByteOrder.BIG_ENDIAN);
+		
+		int header = reader.getInt();
+		out.version = header & 0xff;
+		if((header >> 8) != 0x444e58) {
+			throw new IllegalStateException(String.format(
+					"Unexpected DNX header: %c%c%c (v%d)",
+					(header >> 24) & 0xff,
+					(header >> 16) & 0xff,
+					(header >> 8) & 0xff,
+					out.version
+			));
+		}
+		
+		if(out.version < 2 || out.version > 4) {
+			throw new IllegalStateException("Unsupported DNX version: " + out.version);
+		}
+		
+		reader.order(ByteOrder.LITTLE_ENDIAN);
+		byte flags = reader.get();
+		
+		out.compressed = (flags & 1) == 1;
+		out.internalTranslationFile = ((flags >> 1) & 1) == 1;
+		out.size = reader.getInt();
+		
+		if(out.compressed) {
+			out.compressedSize = reader.getInt();
+		}
+		return out;
+	}
+	
+	protected static DNXHeader read(ReadableByteChannel channel) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(13);
+		buffer.limit(9);
+		readFully(channel, buffer);
+		if((buffer.get(4) & 1) == 1) {
+			buffer.limit(13);
+			readFully(channel, buffer);
+		}
+		buffer.flip();
+		return read(buffer);
+	}
+	
+	protected static DNXHeader load(ByteBuffer reader) {
+		try {
+			DNXHeader out = read(reader);
+			if(out.compressed) {
+				Inflater inflater = new Inflater(false);
+				ByteBuffer body = ByteBuffer.allocateDirect(out.size);
+				try {
+					inflater.setInput(reader.slice(reader.position(), out.compressedSize));
+					while(body.hasRemaining() && !inflater.finished() && !inflater.needsInput()) {
+						inflate(inflater, body);
+					}
+				}
+				finally {
+					inflater.end();
+				}
+				out.body = out.checkInflated(body);
+			}
+			else {
+				out.body = reader.slice().order(ByteOrder.LITTLE_ENDIAN);
+			}
+			return out;
+		}
+		catch(RuntimeException e) {
+			throw new IllegalArgumentException("Invalid DNX file", e);
+		}
+	}
+	
+	// Streams the file through a small buffer instead of reading it all at once,
+	// so compressed files only ever need room for the decompressed data.
+	protected static DNXHeader load(File file) throws IOException {
+		try(FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			DNXHeader out = read(channel);
+			ByteBuffer body = ByteBuffer.allocateDirect(out.compressed ? out.size : (int)(channel.size() - out.getLength()));
+			
+			if(out.compressed) {
+				Inflater inflater = new Inflater(false);
+				ByteBuffer input = ByteBuffer.allocateDirect(Math.min(INFLATE_CHUNK_SIZE, Math.max(out.compressedSize, 1)));
+				try {
+					int remaining = out.compressedSize;
+					while(body.hasRemaining() && !inflater.finished()) {
+						if(inflater.needsInput()) {
+							if(remaining <= 0) {
+								break;
+							}
+							input.clear();
+							input.limit(Math.min(input.capacity(), remaining));
+							if(channel.read(input) < 0) {
+								break;
+							}
+							remaining -= input.position();
+							input.flip();
+							inflater.setInput(input);
+						}
+						inflate(inflater, body);
+					}
+				}
+				finally {
+					inflater.end();
+				}
+				out.body = out.checkInflated(body);
+			}
+			else {
+				readFully(channel, body);
+				out.body = body.flip().order(ByteOrder.LITTLE_ENDIAN);
+			}
+			return out;
+		}
+		catch(RuntimeException e) {
+			throw new IllegalArgumentException("Invalid DNX file", e);
+		}
+	}
+	
+	private static void inflate(Inflater inflater, ByteBuffer output) {
+		try {
+			inflater.inflate(output);
+		}
+		catch(DataFormatException e) {
+			throw new IllegalArgumentException("Invalid compressed data", e);
+		}
+		if(inflater.needsDictionary()) {
+			throw new IllegalArgumentException("Invalid compressed data: preset dictionaries are not supported");
+		}
+	}
+	
+	private ByteBuffer checkInflated(ByteBuffer body) {
+		if(body.position() != size) {
+			throw new IllegalArgumentException("Invalid compressed data: expected " + size + " bytes, got " + body.position());
+		}
+		return body.flip().order(ByteOrder.LITTLE_ENDIAN);
+	}
+	
+	private static void readFully(ReadableByteChannel channel, ByteBuffer buffer) throws IOException {
+		while(buffer.hasRemaining()) {
+			if(channel.read(buffer) < 0) {
+				throw new EOFException("Unexpected end of file");
+			}
+		}
+	}
+}
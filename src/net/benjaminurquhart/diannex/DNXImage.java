@@ -0,0 +1,215 @@
+package net.benjaminurquhart.diannex;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+import com.google.common.io.LittleEndianDataOutputStream;
+
+// Sidecar cache of a file's decompressed contents, along with where every
+// section starts and the offsets of every string (and v2 instruction). It's
+// keyed by a hash of the original file, and loading it skips decompressing,
+// scanning and relocating anything. Entries are decoded lazily like with map.
+class DNXImage {
+	
+	private static final int MAGIC = 0x444e5849; // DNXI
+	private static final int FORMAT = 1;
+	
+	// Offset of every section into the body, -1 for ones the file doesn't have
+	protected int[] sections;
+	
+	protected int[] stringOffsets, translationOffsets, instructionOffsets;
+	
+	private DNXImage() {}
+	
+	protected static DNXFile load(File file, File cache) throws IOException {
+		ByteBuffer source;
+		try(FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			source = channel.map(MapMode.READ_ONLY, 0, channel.size());
+		}
+		byte[] hash = hashOf(source);
+		
+		if(cache.isFile()) {
+			try {
+				DNXFile out = read(cache, hash);
+				if(out != null) {
+					return out;
+				}
+			}
+			catch(IOException | RuntimeException e) {
+				// Broken cache, just build it again
+			}
+		}
+		
+		DNXHeader header = DNXHeader.load(source);
+		DNXFile out = new DNXFile(header, true, null);
+		out.source = file;
+		try {
+			write(out, header, cache, hash);
+		}
+		catch(IOException e) {
+			// The cache is only an optimization
+		}
+		return out;
+	}
+	
+	private static byte[] hashOf(ByteBuffer source) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			digest.update(source.duplicate());
+			return digest.digest();
+		}
+		catch(NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+	
+	private static DNXFile read(File cache, byte[] hash) throws IOException {
+		ByteBuffer reader;
+		try(FileChannel channel = FileChannel.open(cache.toPath(), StandardOpenOption.READ)) {
+			reader = channel.map(MapMode.READ_ONLY, 0, channel.size());
+		}
+		if(reader.getInt() != MAGIC || reader.getInt() != FORMAT) {
+			return null;
+		}
+		byte[] expected = new byte[hash.length];
+		reader.get(expected);
+		if(!Arrays.equals(hash, expected)) {
+			return null;
+		}
+		
+		reader.order(ByteOrder.LITTLE_ENDIAN);
+		int version = reader.getInt();
+		boolean internalTranslationFile = reader.get() != 0;
+		int size = reader.getInt();
+		
+		DNXImage image = new DNXImage();
+		image.sections = readInts(reader);
+		
+		ByteBuffer body = reader.slice(reader.position(), size);
+		reader.position(reader.position() + size);
+		
+		image.stringOffsets = readInts(reader);
+		image.translationOffsets = readInts(reader);
+		image.instructionOffsets = readInts(reader);
+		
+		DNXFile out = new DNXFile(new DNXHeader(version, internalTranslationFile, body), true, image);
+		out.source = cache;
+		return out;
+	}
+	
+	private static void write(DNXFile file, DNXHeader header, File cache, byte[] hash) throws IOException {
+		ByteBuffer body = header.body.duplicate().clear();
+		int[] sections = file.sectionOffsets;
+		
+		DNXOutputBuffer out = new DNXOutputBuffer(body.remaining() + 1024);
+		LittleEndianDataOutputStream stream = new LittleEndianDataOutputStream(out);
+		stream.writeInt(Integer.reverseBytes(MAGIC));
+		stream.writeInt(Integer.reverseBytes(FORMAT));
+		stream.write(hash);
+		stream.writeInt(header.version);
+		stream.write(header.internalTranslationFile ? 1 : 0);
+		stream.writeInt(body.remaining());
+		writeInts(stream, sections);
+		out.write(body.duplicate());
+		
+		writeInts(stream, stringOffsetsOf(body, sections, DNXFile.STRINGS, header.version));
+		writeInts(stream, stringOffsetsOf(body, sections, DNXFile.TRANSLATIONS, header.version));
+		writeInts(stream, file.lazyCode.getInstructionOffsets());
+		
+		// Written next to the cache and moved over it, so nobody ever sees half of one
+		Path target = cache.getAbsoluteFile().toPath();
+		Path tmp = Files.createTempFile(target.getParent(), cache.getName(), ".tmp");
+		try {
+			try(FileChannel channel = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+				out.writeTo(channel);
+			}
+			try {
+				Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			}
+			catch(AtomicMoveNotSupportedException e) {
+				Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING);
+			}
+		}
+		finally {
+			Files.deleteIfExists(tmp);
+		}
+	}
+	
+	private static int[] stringOffsetsOf(ByteBuffer body, int[] sections, int section, int version) {
+		if(sections[section] < 0) {
+			return null;
+		}
+		ByteBuffer reader = body.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+		reader.position(sections[section]);
+		if(version >= 4) {
+			reader.getInt();
+		}
+		return new DNXStringTable(reader, reader.getInt()).offsets();
+	}
+	
+	// Slices of the body for every section, leaving the body read to the end
+	protected ByteBuffer[] slices(ByteBuffer body) {
+		int start = body.position();
+		ByteBuffer[] out = new ByteBuffer[sections.length];
+		for(int i = 0, end; i < sections.length; i++) {
+			if(sections[i] < 0) {
+				continue;
+			}
+			end = body.limit() - start;
+			for(int j = i + 1; j < sections.length; j++) {
+				if(sections[j] >= 0) {
+					end = sections[j];
+					break;
+				}
+			}
+			out[i] = body.slice(start + sections[i], end - sections[i]).order(ByteOrder.LITTLE_ENDIAN);
+		}
+		body.position(body.limit());
+		return out;
+	}
+	
+	protected DNXStringTable strings(ByteBuffer reader, int[] offsets, int version) {
+		if(version >= 4) {
+			reader.getInt();
+		}
+		int size = reader.getInt();
+		if(size != offsets.length - 1) {
+			throw new IllegalStateException("Expected " + size + " strings, image has " + (offsets.length - 1));
+		}
+		return new DNXStringTable(reader, offsets);
+	}
+	
+	private static int[] readInts(ByteBuffer reader) {
+		int length = reader.getInt();
+		if(length < 0) {
+			return null;
+		}
+		int[] out = new int[length];
+		reader.asIntBuffer().get(out);
+		reader.position(reader.position() + length * 4);
+		return out;
+	}
+	
+	private static void writeInts(LittleEndianDataOutputStream stream, int[] values) throws IOException {
+		if(values == null) {
+			stream.writeInt(-1);
+			return;
+		}
+		stream.writeInt(values.length);
+		for(int value : values) {
+			stream.writeInt(value);
+		}
+	}
+}
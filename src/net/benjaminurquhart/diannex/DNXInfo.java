@@ -0,0 +1,181 @@
+package net.benjaminurquhart.diannex;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+// Summary of a file that's read without building any entries or instructions.
+// v4 sections are skipped using their size prefixes, older versions have to
+// walk the entry tables (and the bytecode for v2) instead. Compressed files
+// still need to be decompressed, load builds the full file from that same data.
+public class DNXInfo {
+	
+	public final int version;
+	public final boolean compressed, internalTranslationFile;
+	
+	// Size of the (decompressed) data following the header
+	public final int size;
+	
+	public final int sceneCount, functionCount, definitionCount;
+	public final int stringCount, translationCount, externalFunctionCount;
+	
+	// Size of the bytecode in bytes for v3+, or the number of instructions for v2
+	public final int bytecodeSize;
+	
+	// Empty unless names were asked for
+	public final List<String> sceneNames, functionNames, definitionNames;
+	
+	// Kept (with its decompressed data) for load
+	private final DNXHeader header;
+	
+	public static DNXInfo read(File file) throws IOException {
+		return read(file, false);
+	}
+	
+	public static DNXInfo read(File file, boolean names) throws IOException {
+		try(FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			return read(channel.map(MapMode.READ_ONLY, 0, channel.size()), names);
+		}
+	}
+	
+	public static DNXInfo read(ByteBuffer reader, boolean names) {
+		DNXHeader header = DNXHeader.load(reader);
+		try {
+			return new DNXInfo(header, names);
+		}
+		catch(RuntimeException e) {
+			throw new IllegalArgumentException("Invalid DNX file", e);
+		}
+	}
+	
+	private DNXInfo(DNXHeader header, boolean names) {
+		ByteBuffer reader = header.body.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+		this.header = header;
+		version = header.version;
+		compressed = header.compressed;
+		internalTranslationFile = header.internalTranslationFile;
+		size = header.size;
+		
+		int[] scenes = readEntries(reader, false, names);
+		int[] functions = readEntries(reader, false, names);
+		int[] definitions = readEntries(reader, true, names);
+		sceneCount = scenes.length;
+		functionCount = functions.length;
+		definitionCount = definitions.length;
+		
+		if(version >= 3) {
+			bytecodeSize = reader.getInt();
+			reader.position(reader.position() + bytecodeSize);
+		}
+		else {
+			bytecodeSize = reader.getInt();
+			for(int i = 0; i < bytecodeSize; i++) {
+				reader.position(reader.position() + DNXBytecode.lengthOf(reader.get(reader.position())));
+			}
+		}
+		
+		int start = reader.position();
+		int sectionSize = version >= 4 ? reader.getInt() : -1;
+		stringCount = reader.getInt();
+		
+		ByteBuffer strings = reader.slice();
+		int[] offsets = null;
+		if(names || sectionSize < 0) {
+			offsets = DNXStringTable.offsetsOf(reader, stringCount);
+			reader.position(reader.position() + offsets[stringCount]);
+		}
+		else {
+			reader.position(start + sectionSize + 4);
+		}
+		
+		if(internalTranslationFile) {
+			start = reader.position();
+			sectionSize = version >= 4 ? reader.getInt() : -1;
+			translationCount = reader.getInt();
+			if(sectionSize < 0) {
+				int[] translations = DNXStringTable.offsetsOf(reader, translationCount);
+				reader.position(reader.position() + translations[translationCount]);
+			}
+			else {
+				reader.position(start + sectionSize + 4);
+			}
+		}
+		else {
+			translationCount = 0;
+		}
+		
+		if(version >= 4) {
+			reader.getInt();
+		}
+		externalFunctionCount = version >= 3 ? reader.getInt() : 0;
+		
+		sceneNames = namesOf(scenes, strings, offsets);
+		functionNames = namesOf(functions, strings, offsets);
+		definitionNames = namesOf(definitions, strings, offsets);
+	}
+	
+	// Reads the whole file from the data this was read from, instead of
+	// loading (and decompressing) it all over again
+	public DNXFile load() {
+		return new DNXFile(header.duplicate(), false, null);
+	}
+	
+	// Name indices of every entry in a table, which are only actually read if needed
+	private int[] readEntries(ByteBuffer reader, boolean definitions, boolean names) {
+		int start = reader.position();
+		int sectionSize = version >= 4 ? reader.getInt() : -1;
+		int[] out = new int[reader.getInt()];
+		if(!names && sectionSize >= 0) {
+			reader.position(start + sectionSize + 4);
+			return out;
+		}
+		for(int i = 0; i < out.length; i++) {
+			out[i] = reader.getInt();
+			if(definitions) {
+				reader.position(reader.position() + 8);
+			}
+			else {
+				int indicies = reader.getShort();
+				reader.position(reader.position() + indicies * 4);
+			}
+		}
+		return out;
+	}
+	
+	private static List<String> namesOf(int[] indices, ByteBuffer strings, int[] offsets) {
+		if(offsets == null) {
+			return Collections.emptyList();
+		}
+		List<String> out = new ArrayList<>(indices.length);
+		byte[] bytes;
+		for(int index : indices) {
+			bytes = new byte[offsets[index + 1] - offsets[index] - 1];
+			strings.get(offsets[index], bytes);
+			out.add(new String(bytes, StandardCharsets.UTF_8));
+		}
+		return Collections.unmodifiableList(out);
+	}
+	
+	@Override
+	public String toString() {
+		return String.format(
+				"DNXInfo [v%d%s%s, %d scenes, %d functions, %d definitions, %d strings, %d translations]",
+				version,
+				compressed ? ", compressed" : "",
+				internalTranslationFile ? ", internal translations" : "",
+				sceneCount,
+				functionCount,
+				definitionCount,
+				stringCount,
+				translationCount
+		);
+	}
+}
@@ -0,0 +1,159 @@
+package net.benjaminurquhart.diannex;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Objects;
+import java.util.RandomAccess;
+
+// List behind a file's entries and string tables, and its entries' instructions
+// and flags. It counts its own changes so whatever was built from it can tell
+// whether it's still current. Every change to the list (including through
+// sublists and iterators) ends up in add, set or remove.
+//
+// changes counts all of them. rewrites leaves out appending to the end, which
+// indexes can keep up with by looking at just the new elements. Lists a file
+// owns also count their changes as changes to the file, see DNXFile#adopt.
+public class DNXList<T> extends AbstractList<T> implements RandomAccess {
+	
+	private Object[] elements;
+	private int size;
+	
+	private int changes, rewrites;
+	
+	// Lists of frozen files, which can't be changed
+	private final boolean frozen;
+	
+	private DNXFile owner;
+	
+	public DNXList() {
+		elements = new Object[16];
+		frozen = false;
+	}
+	
+	public DNXList(Collection<? extends T> elements) {
+		this(elements.toArray(), false);
+	}
+	
+	private DNXList(Object[] elements, boolean frozen) {
+		this.elements = elements;
+		this.size = elements.length;
+		this.frozen = frozen;
+	}
+	
+	protected static <T> DNXList<T> frozen(T[] elements) {
+		return new DNXList<>(Arrays.copyOf(elements, elements.length, Object[].class), true);
+	}
+	
+	protected static <T> DNXList<T> frozen(Collection<? extends T> elements) {
+		return new DNXList<>(elements.toArray(), true);
+	}
+	
+	public int changes() {
+		return changes;
+	}
+	
+	public int rewrites() {
+		return rewrites;
+	}
+	
+	// Everything already in the list is adopted by the file too, and so is anything added later
+	protected void setOwner(DNXFile owner) {
+		this.owner = owner;
+		for(int i = 0; i < size; i++) {
+			owner.adopt(elements[i]);
+		}
+	}
+	
+	// Whether every change to the list shows up in the file's modification count
+	protected boolean isTrackedBy(DNXFile file) {
+		return frozen || owner == file;
+	}
+	
+	@Override
+	@SuppressWarnings("unchecked")
+	public T get(int index) {
+		Objects.checkIndex(index, size);
+		return (T)elements[index];
+	}
+	
+	@Override
+	public int size() {
+		return size;
+	}
+	
+	@Override
+	@SuppressWarnings("unchecked")
+	public T set(int index, T element) {
+		checkFrozen();
+		Objects.checkIndex(index, size);
+		T old = (T)elements[index];
+		if(old != element) {
+			elements[index] = element;
+			changed(true, element);
+		}
+		return old;
+	}
+	
+	@Override
+	public void add(int index, T element) {
+		checkFrozen();
+		Objects.checkIndex(index, size + 1);
+		if(size == elements.length) {
+			elements = Arrays.copyOf(elements, Math.max(16, size * 2));
+		}
+		boolean rewrite = index < size;
+		if(rewrite) {
+			System.arraycopy(elements, index, elements, index + 1, size - index);
+		}
+		elements[index] = element;
+		size++;
+		changed(rewrite, element);
+		modCount++;
+	}
+	
+	@Override
+	@SuppressWarnings("unchecked")
+	public T remove(int index) {
+		checkFrozen();
+		Objects.checkIndex(index, size);
+		T old = (T)elements[index];
+		System.arraycopy(elements, index + 1, elements, index, size - index - 1);
+		elements[--size] = null;
+		changed(true, null);
+		modCount++;
+		return old;
+	}
+	
+	@Override
+	protected void removeRange(int from, int to) {
+		checkFrozen();
+		if(from >= to) {
+			return;
+		}
+		System.arraycopy(elements, to, elements, from, size - to);
+		Arrays.fill(elements, size - (to - from), size, null);
+		size -= to - from;
+		changed(true, null);
+		modCount++;
+	}
+	
+	private void changed(boolean rewrite, T added) {
+		changes++;
+		if(rewrite) {
+			rewrites++;
+		}
+		if(owner != null) {
+			if(added != null) {
+				owner.adopt(added);
+			}
+			owner.modified();
+		}
+	}
+	
+	private void checkFrozen() {
+		if(frozen) {
+			throw new UnsupportedOperationException("List is frozen");
+		}
+	}
+}
@@ -0,0 +1,79 @@
+package net.benjaminurquhart.diannex;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.WritableByteChannel;
+
+// Single growable buffer a whole file is serialized into. Sizes that aren't
+// known until their contents have been written get patched in afterwards.
+class DNXOutputBuffer extends OutputStream {
+	
+	private ByteBuffer buffer;
+	
+	protected DNXOutputBuffer(int capacity) {
+		buffer = ByteBuffer.allocateDirect(Math.max(capacity, 16)).order(ByteOrder.LITTLE_ENDIAN);
+	}
+	
+	private void ensureCapacity(int length) {
+		if(buffer.remaining() >= length) {
+			return;
+		}
+		long capacity = Math.max((long)buffer.capacity() * 2, (long)buffer.position() + length);
+		if(capacity > Integer.MAX_VALUE - 8) {
+			throw new IllegalStateException("File is too large to serialize");
+		}
+		ByteBuffer grown = ByteBuffer.allocateDirect((int)capacity).order(ByteOrder.LITTLE_ENDIAN);
+		grown.put(buffer.flip());
+		buffer = grown;
+	}
+	
+	protected int position() {
+		return buffer.position();
+	}
+	
+	protected void putInt(int index, int value) {
+		buffer.putInt(index, value);
+	}
+	
+	protected void put(int index, byte value) {
+		buffer.put(index, value);
+	}
+	
+	@Override
+	public void write(int b) {
+		ensureCapacity(1);
+		buffer.put((byte)b);
+	}
+	
+	@Override
+	public void write(byte[] bytes, int offset, int length) {
+		ensureCapacity(length);
+		buffer.put(bytes, offset, length);
+	}
+	
+	// The buffer itself with room for at least length more bytes, for writing into directly.
+	// Only good until the next call, since it might get replaced by a bigger one.
+	protected ByteBuffer reserve(int length) {
+		ensureCapacity(length);
+		return buffer;
+	}
+	
+	protected void write(ByteBuffer bytes) {
+		ensureCapacity(bytes.remaining());
+		buffer.put(bytes);
+	}
+	
+	// Read only view of everything written so far
+	protected ByteBuffer contents() {
+		return buffer.asReadOnlyBuffer().flip();
+	}
+	
+	protected void writeTo(WritableByteChannel channel) throws IOException {
+		ByteBuffer out = buffer.duplicate().flip();
+		while(out.hasRemaining()) {
+			channel.write(out);
+		}
+	}
+}
@@ -0,0 +1,51 @@
+package net.benjaminurquhart.diannex;
+
+import java.util.AbstractList;
+import java.util.List;
+import java.util.RandomAccess;
+import java.util.function.Function;
+
+// Stands in for the instructions or flags of a lazily loaded entry until it's
+// decoded (see DNXFile#map), which happens the first time the list is used.
+// After that everything goes straight to the entry's own list.
+class DNXPendingList<T> extends AbstractList<T> implements RandomAccess {
+	
+	private final DNXFile file;
+	private final DNXCompiled entry;
+	private final Function<DNXCompiled, List<T>> list;
+	
+	protected DNXPendingList(DNXFile file, DNXCompiled entry, Function<DNXCompiled, List<T>> list) {
+		this.file = file;
+		this.entry = entry;
+		this.list = list;
+	}
+	
+	private List<T> decoded() {
+		return list.apply(file.decode(entry));
+	}
+	
+	@Override
+	public T get(int index) {
+		return decoded().get(index);
+	}
+	
+	@Override
+	public int size() {
+		return decoded().size();
+	}
+	
+	@Override
+	public T set(int index, T element) {
+		return decoded().set(index, element);
+	}
+	
+	@Override
+	public void add(int index, T element) {
+		decoded().add(index, element);
+	}
+	
+	@Override
+	public T remove(int index) {
+		return decoded().remove(index);
+	}
+}
@@ -0,0 +1,180 @@
+package net.benjaminurquhart.diannex;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// Every instruction in a file flattened in serialization order, along with
+// where each entry's chunk starts. Built once and reused for as long as the
+// file has the same chunks with the same instructions in them. When every
+// chunk is in a list the file tracks, that only takes comparing the file's
+// modification count. Otherwise the chunks are checked one by one: DNXLists
+// by their change count, any other list instruction by instruction.
+class DNXProgram {
+	
+	protected final List<DNXBytecode> bytecode;
+	protected final List<DNXBytecode> entryPoints;
+	
+	// Index of every entry point within bytecode
+	private final Map<DNXBytecode, Integer> entryIndices;
+	
+	// Every chunk the program was built from, in order, and what it looked like at the time
+	private final List<?>[] chunks;
+	private final DNXBytecode[] instructions;
+	private final int[] starts, sizes, changes;
+	
+	// Whether every chunk and every list of flags is tracked by the file, see DNXList#isTrackedBy
+	private final boolean tracked;
+	
+	// File's modification count as of the last time this was found to be current
+	protected volatile int stamp;
+	
+	private DNXProgram(List<List<DNXBytecode>> chunks, boolean tracked) {
+		this.tracked = tracked;
+		int size = 0;
+		for(List<DNXBytecode> chunk : chunks) {
+			size += chunk.size();
+		}
+		
+		this.chunks = chunks.toArray(List<?>[]::new);
+		this.starts = new int[this.chunks.length];
+		this.sizes = new int[this.chunks.length];
+		this.changes = new int[this.chunks.length];
+		
+		DNXBytecode[] bytecode = new DNXBytecode[size];
+		List<DNXBytecode> entryPoints = new ArrayList<>();
+		entryIndices = new IdentityHashMap<>();
+		
+		int index = 0, offset = 0;
+		List<DNXBytecode> chunk;
+		for(int i = 0; i < this.chunks.length; i++) {
+			chunk = chunks.get(i);
+			starts[i] = index;
+			sizes[i] = chunk.size();
+			changes[i] = chunk instanceof DNXList ? ((DNXList<?>)chunk).changes() : -1;
+			if(chunk.isEmpty()) {
+				continue;
+			}
+			
+			entryPoints.add(chunk.get(0));
+			entryIndices.put(chunk.get(0), index);
+			for(DNXBytecode entry : chunk) {
+				// Used for serialization
+				entry.offset = offset;
+				offset += entry.getLength();
+				bytecode[index++] = entry;
+			}
+		}
+		
+		Set<DNXBytecode> unique = Collections.newSetFromMap(new IdentityHashMap<>(size));
+		Collections.addAll(unique, bytecode);
+		if(unique.size() != size) {
+			throw new IllegalStateException((size - unique.size()) + " duplicate bytecode elements");
+		}
+		this.instructions = bytecode;
+		this.bytecode = DNXList.frozen(bytecode);
+		this.entryPoints = Collections.unmodifiableList(entryPoints);
+	}
+	
+	protected static DNXProgram of(DNXFile reader) {
+		return new DNXProgram(chunksOf(reader), isTracked(reader));
+	}
+	
+	private static boolean isTracked(DNXFile reader) {
+		for(List<? extends DNXCompiled> entries : List.of(reader.scenes, reader.functions, reader.definitions)) {
+			for(DNXCompiled entry : entries) {
+				if(!isTracked(reader, entry.instructions) || !isTracked(reader, entry.flags)) {
+					return false;
+				}
+				for(DNXFlag flag : entry.flags) {
+					if(!isTracked(reader, flag.valueBytecode) || !isTracked(reader, flag.keyBytecode)) {
+						return false;
+					}
+				}
+			}
+		}
+		return true;
+	}
+	
+	private static boolean isTracked(DNXFile reader, List<?> list) {
+		return list instanceof DNXList && ((DNXList<?>)list).isTrackedBy(reader);
+	}
+	
+	// Nothing the file can see has changed since this was last found current
+	protected boolean isCurrent(DNXFile reader) {
+		return tracked && stamp == reader.getModificationCount();
+	}
+	
+	// Chunks in the order they end up in the bytecode section
+	private static List<List<DNXBytecode>> chunksOf(DNXFile reader) {
+		List<List<DNXBytecode>> out = new ArrayList<>();
+		for(DNXScene scene : reader.scenes) {
+			out.add(scene.instructions);
+			for(DNXFlag flag : scene.flags) {
+				out.add(flag.valueBytecode);
+				out.add(flag.keyBytecode);
+			}
+		}
+		for(DNXFunction function : reader.functions) {
+			out.add(function.instructions);
+		}
+		for(DNXDefinition definition : reader.definitions) {
+			out.add(definition.instructions);
+		}
+		return out;
+	}
+	
+	// Whether the file still has the chunks this was built from, with the same instructions
+	protected boolean matches(DNXFile reader) {
+		int index = 0;
+		for(DNXScene scene : reader.scenes) {
+			if(!matches(index++, scene.instructions)) {
+				return false;
+			}
+			for(DNXFlag flag : scene.flags) {
+				if(!matches(index++, flag.valueBytecode) || !matches(index++, flag.keyBytecode)) {
+					return false;
+				}
+			}
+		}
+		for(DNXFunction function : reader.functions) {
+			if(!matches(index++, function.instructions)) {
+				return false;
+			}
+		}
+		for(DNXDefinition definition : reader.definitions) {
+			if(!matches(index++, definition.instructions)) {
+				return false;
+			}
+		}
+		return index == chunks.length;
+	}
+	
+	private boolean matches(int index, List<DNXBytecode> chunk) {
+		if(index >= chunks.length || chunks[index] != chunk || chunk == null) {
+			return false;
+		}
+		if(chunk instanceof DNXList) {
+			return ((DNXList<?>)chunk).changes() == changes[index];
+		}
+		int size = chunk.size();
+		if(size != sizes[index]) {
+			return false;
+		}
+		for(int i = 0; i < size; i++) {
+			if(chunk.get(i) != instructions[starts[index] + i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	// Index of the given entry point within bytecode, -1 if it isn't one
+	protected int indexOfEntryPoint(DNXBytecode entry) {
+		Integer index = entryIndices.get(entry);
+		return index == null ? -1 : index;
+	}
+}
@@ -0,0 +1,272 @@
+package net.benjaminurquhart.diannex;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import net.benjaminurquhart.diannex.DNXBytecode.Opcode;
+
+// Feeds a file to a DNXVisitor front to back without building a DNXFile.
+// Files are read through a small window (decompressing as it goes), so the
+// whole thing runs in constant memory no matter how big the file is.
+public class DNXScanner {
+	
+	// Sections that don't need to be visited. They're still read past, but nothing gets decoded.
+	public static final int SKIP_CODE = 1, SKIP_STRINGS = 2, SKIP_TRANSLATIONS = 4;
+	
+	private static final int WINDOW_SIZE = 1 << 16;
+	
+	private final ReadableByteChannel channel;
+	private ByteBuffer window;
+	
+	// Only ever grows to fit the longest string
+	private byte[] bytes = new byte[256];
+	
+	private DNXScanner(ByteBuffer window, ReadableByteChannel channel) {
+		this.window = window.order(ByteOrder.LITTLE_ENDIAN);
+		this.channel = channel;
+	}
+	
+	public static void scan(File file, DNXVisitor visitor) throws IOException {
+		scan(file, visitor, 0);
+	}
+	
+	public static void scan(File file, DNXVisitor visitor, int flags) throws IOException {
+		try(FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			DNXHeader header = DNXHeader.read(channel);
+			ByteBuffer window = ByteBuffer.allocateDirect(WINDOW_SIZE).flip();
+			if(!header.compressed) {
+				new DNXScanner(window, channel).accept(header, visitor, flags);
+				return;
+			}
+			Inflater inflater = new Inflater(false);
+			try {
+				InputStream input = new InflaterInputStream(Channels.newInputStream(channel), inflater, WINDOW_SIZE);
+				new DNXScanner(window, Channels.newChannel(input)).accept(header, visitor, flags);
+			}
+			finally {
+				inflater.end();
+			}
+		}
+		catch(UncheckedIOException e) {
+			throw e.getCause();
+		}
+	}
+	
+	// For files that are already in memory
+	public static void scan(ByteBuffer reader, DNXVisitor visitor, int flags) {
+		DNXHeader header = DNXHeader.load(reader);
+		new DNXScanner(header.body.duplicate(), null).accept(header, visitor, flags);
+	}
+	
+	private void accept(DNXHeader header, DNXVisitor visitor, int flags) {
+		int version = header.version;
+		visitor.visitHeader(version, header.compressed, header.internalTranslationFile, header.size);
+		
+		skipSize(version);
+		int count = getInt();
+		for(int i = 0; i < count; i++) {
+			readEntry(visitor, i, false);
+		}
+		skipSize(version);
+		count = getInt();
+		for(int i = 0; i < count; i++) {
+			readEntry(visitor, i, true);
+		}
+		skipSize(version);
+		count = getInt();
+		int name, reference;
+		for(int i = 0; i < count; i++) {
+			name = getInt();
+			reference = getInt();
+			visitor.visitDefinition(i, name, reference & ~(1 << 31), reference >= 0, getInt());
+		}
+		
+		readCode(version, visitor, (flags & SKIP_CODE) == 0);
+		readStrings(version, visitor, false, (flags & SKIP_STRINGS) == 0);
+		if(header.internalTranslationFile) {
+			readStrings(version, visitor, true, (flags & SKIP_TRANSLATIONS) == 0);
+		}
+		if(version >= 3) {
+			skipSize(version);
+			count = getInt();
+			for(int i = 0; i < count; i++) {
+				visitor.visitExternalFunction(i, getInt());
+			}
+		}
+		visitor.visitEnd();
+	}
+	
+	// Scenes and functions, followed by their flags
+	private void readEntry(DNXVisitor visitor, int index, boolean function) {
+		int name = getInt();
+		int count = getShort();
+		ensure(count * 4);
+		int position = count > 0 ? window.getInt() : -1;
+		if(function) {
+			visitor.visitFunction(index, name, position);
+		}
+		else {
+			visitor.visitScene(index, name, position);
+		}
+		for(int i = 1; i < count; i += 2) {
+			visitor.visitFlag(i / 2, window.getInt(), i + 1 < count ? window.getInt() : -1);
+		}
+	}
+	
+	private void readCode(int version, DNXVisitor visitor, boolean visit) {
+		int size = getInt();
+		visitor.visitCode(size);
+		if(!visit && version >= 3) {
+			skip(size);
+			return;
+		}
+		
+		Opcode opcode;
+		int arg1, arg2;
+		double argDouble;
+		for(int position = 0, end = version >= 3 ? size : -1, index = 0; version >= 3 ? position < end : index < size; index++) {
+			ensure(1);
+			opcode = Opcode.from(window.get());
+			if(!visit) {
+				skip(opcode.getLength() - 1);
+				continue;
+			}
+			arg1 = arg2 = 0;
+			argDouble = 0;
+			switch(opcode.getType()) {
+			case TWO:
+				arg1 = getInt();
+				arg2 = getInt();
+				break;
+			case FLOAT:
+				ensure(8);
+				argDouble = window.getDouble();
+				break;
+			case ONE:
+				arg1 = getInt();
+				break;
+			default:
+				break;
+			}
+			visitor.visitInstruction(version >= 3 ? position : index, opcode, arg1, arg2, argDouble);
+			position += opcode.getLength();
+		}
+	}
+	
+	private void readStrings(int version, DNXVisitor visitor, boolean translations, boolean visit) {
+		int size = version >= 4 ? getInt() : -1;
+		int count = getInt();
+		if(translations) {
+			visitor.visitTranslations(count);
+		}
+		else {
+			visitor.visitStrings(count);
+		}
+		if(!visit && size >= 0) {
+			skip(size - 4);
+			return;
+		}
+		
+		String value;
+		for(int i = 0; i < count; i++) {
+			value = readString(visit);
+			if(!visit) {
+				continue;
+			}
+			if(translations) {
+				visitor.visitTranslation(i, value);
+			}
+			else {
+				visitor.visitString(i, value);
+			}
+		}
+	}
+	
+	private String readString(boolean decode) {
+		int length = 0;
+		byte b;
+		while(true) {
+			if(!window.hasRemaining()) {
+				ensure(1);
+			}
+			b = window.get();
+			if(b == 0) {
+				break;
+			}
+			if(decode) {
+				if(length == bytes.length) {
+					bytes = Arrays.copyOf(bytes, length * 2);
+				}
+				bytes[length++] = b;
+			}
+		}
+		return decode ? new String(bytes, 0, length, StandardCharsets.UTF_8) : null;
+	}
+	
+	private void skipSize(int version) {
+		if(version >= 4) {
+			getInt();
+		}
+	}
+	
+	private int getInt() {
+		ensure(4);
+		return window.getInt();
+	}
+	
+	private short getShort() {
+		ensure(2);
+		return window.getShort();
+	}
+	
+	private void skip(int length) {
+		while(length > window.remaining()) {
+			length -= window.remaining();
+			window.position(window.limit());
+			ensure(1);
+		}
+		window.position(window.position() + length);
+	}
+	
+	// Makes sure at least length bytes are left in the window, reading more if needed
+	private void ensure(int length) {
+		if(window.remaining() >= length) {
+			return;
+		}
+		if(channel == null) {
+			throw new IllegalStateException("Ran out of bytes");
+		}
+		if(length > window.capacity()) {
+			ByteBuffer grown = ByteBuffer.allocateDirect(length).order(ByteOrder.LITTLE_ENDIAN);
+			grown.put(window);
+			window = grown;
+		}
+		else {
+			window.compact();
+		}
+		try {
+			while(window.position() < length) {
+				if(channel.read(window) < 0) {
+					throw new EOFException("Unexpected end of file");
+				}
+			}
+		}
+		catch(IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		window.flip();
+	}
+}
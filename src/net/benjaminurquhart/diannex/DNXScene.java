@@ -8,9 +8,9 @@ public class DNXScene extends DNXCompiled {
 
 	public DNXScene(ByteBuffer reader) {
 		symbolPointer = reader.getInt();
-		int size = reader.getShort();
-		for(int i = 0; i < size; i++) {
-			bytecodeIndicies.add(reader.getInt());
+		bytecodeIndicies = new int[reader.getShort()];
+		for(int i = 0; i < bytecodeIndicies.length; i++) {
+			bytecodeIndicies[i] = reader.getInt();
 		}
 	}
 	
@@ -2,14 +2,19 @@ package net.benjaminurquhart.diannex;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.util.Arrays;
+import java.nio.charset.StandardCharsets;
 
+import com.google.common.collect.Interner;
 import com.google.common.io.LittleEndianDataOutputStream;
 
 public class DNXString implements IDNXSerializable {
 
 	private String value;
 	
+	// Set for strings loaded as part of a table until they're first needed
+	private DNXStringTable table;
+	private int index;
+	
 	public DNXString(String value) {
 		if(value == null) {
 			throw new IllegalArgumentException("Cannot create null DNXString");
@@ -18,53 +23,97 @@ public class DNXString implements IDNXSerializable {
 	}
 	
 	public DNXString(ByteBuffer reader) {
-		byte[] buff = new byte[1024], tmp;
-		int index = 0;
-		byte b;
-		
-		boolean err = false;
-		
-		while((b = reader.get()) != 0) {
-			buff[index++] = b;
-			if(index >= buff.length) {
-				tmp = new byte[buff.length * 2];
-				System.arraycopy(buff, 0, tmp, 0, index);
-				buff = tmp;
-			}
-			if(!reader.hasRemaining()) {
-				err = true;
-				break;
-			}
+		int start = reader.position(), end = start, limit = reader.limit();
+		while(end < limit && reader.get(end) != 0) {
+			end++;
 		}
 		
-		byte[] bytes = Arrays.copyOfRange(buff, 0, index);
-		try {
-			value = new String(bytes, "utf-8");
-		}
-		catch(Exception e) {
-			value = new String(bytes);
-		}
-		if(err) {
+		byte[] bytes = new byte[end - start];
+		reader.get(bytes);
+		value = new String(bytes, StandardCharsets.UTF_8);
+		if(end >= limit) {
 			throw new IllegalStateException("Ran out of bytes while parsing string " + value);
 		}
-		//System.out.printf("DNXString [%s]\n", value);
+		reader.get();
 	}
 	
+	protected DNXString(DNXStringTable table, int index) {
+		this.table = table;
+		this.index = index;
+	}
+	
+	// Encoded (UTF-8) length, including the terminator
 	@Override
 	public int getLength() {
-		return value.length() + 1;
+		if(value == null) {
+			return table.bytes(index).remaining();
+		}
+		return utf8Length(value) + 1;
+	}
+	
+	// Matches String#getBytes, which writes unpaired surrogates as a single '?'
+	private static int utf8Length(String value) {
+		int length = value.length(), out = length;
+		char c;
+		for(int i = 0; i < length; i++) {
+			c = value.charAt(i);
+			if(c < 0x80) {
+				continue;
+			}
+			if(c < 0x800) {
+				out++;
+			}
+			else if(!Character.isSurrogate(c)) {
+				out += 2;
+			}
+			else if(Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(value.charAt(i + 1))) {
+				out += 2;
+				i++;
+			}
+		}
+		return out;
+	}
+	
+	@Override
+	public void writeTo(DNXFile reader, ByteBuffer buffer) {
+		if(value == null) {
+			buffer.put(table.bytes(index));
+			return;
+		}
+		buffer.put(value.getBytes(StandardCharsets.UTF_8));
+		buffer.put((byte)0);
 	}
 	
 	@Override
 	public void serialize(DNXFile reader, LittleEndianDataOutputStream buff) throws IOException {
-		buff.write(value.getBytes("utf-8"));
+		if(value == null) {
+			ByteBuffer bytes = table.bytes(index);
+			buff.write(bytes.array(), bytes.position(), bytes.remaining());
+			return;
+		}
+		buff.write(value.getBytes(StandardCharsets.UTF_8));
 		buff.write((byte)0);
 	}
 	
+	// Swaps the contents for the pooled copy and lets go of the table it was loaded
+	// from, so the table can be collected once none of its strings need it anymore
+	protected void intern(Interner<String> pool) {
+		value = pool.intern(get());
+		table = null;
+	}
+	
 	public String get() {
-		return value;
+		String out = value;
+		if(out == null) {
+			value = out = table.get(index);
+		}
+		return out;
 	}
 	public String getClean() {
+		return clean(get());
+	}
+	
+	protected static String clean(String value) {
 		return value.replace("\\", "\\\\").replace("\n", "\\n").replace("\r", "\\r").replace("\"", "\\\"");
 	}
 	public String toString() {
@@ -0,0 +1,100 @@
+package net.benjaminurquhart.diannex;
+
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Hash lookups over a string table. Tables are normally only appended to, so
+// new entries are indexed as they show up. If the list was changed some other
+// way (see DNXList) it just gets indexed again from the start.
+//
+// Indices of frozen tables are built in full up front and never change after
+// that, so they're read without locking.
+class DNXStringIndex {
+	
+	private final List<DNXString> list;
+	private final DNXList<DNXString> tracked;
+	
+	private final Map<DNXString, Integer> indices = new IdentityHashMap<>();
+	
+	// Only built once something is looked up by content, since it has to decode every string
+	private Map<String, DNXString> contents;
+	
+	private int indexed, rewrites;
+	
+	private final boolean frozen;
+	
+	protected DNXStringIndex(DNXList<DNXString> list) {
+		this.list = list;
+		this.tracked = list;
+		this.rewrites = list.rewrites();
+		this.frozen = false;
+	}
+	
+	private DNXStringIndex(List<DNXString> list, boolean frozen) {
+		this.list = list;
+		this.tracked = null;
+		sync();
+		buildContents();
+		this.frozen = frozen;
+	}
+	
+	// For lists that can't be changed
+	protected static DNXStringIndex frozen(List<DNXString> list) {
+		return new DNXStringIndex(list, true);
+	}
+	
+	private void sync() {
+		int size = list.size();
+		if(tracked != null && tracked.rewrites() != rewrites) {
+			indices.clear();
+			contents = contents == null ? null : new HashMap<>();
+			indexed = 0;
+			rewrites = tracked.rewrites();
+		}
+		DNXString string;
+		for(; indexed < size; indexed++) {
+			string = list.get(indexed);
+			indices.putIfAbsent(string, indexed);
+			if(contents != null) {
+				contents.putIfAbsent(string.get(), string);
+			}
+		}
+	}
+	
+	protected int indexOf(DNXString string) {
+		if(frozen) {
+			return lookup(string);
+		}
+		synchronized(this) {
+			sync();
+			return lookup(string);
+		}
+	}
+	
+	private int lookup(DNXString string) {
+		Integer index = indices.get(string);
+		return index == null ? -1 : index;
+	}
+	
+	protected DNXString find(String content) {
+		if(frozen) {
+			return contents.get(content);
+		}
+		synchronized(this) {
+			sync();
+			if(contents == null) {
+				buildContents();
+			}
+			return contents.get(content);
+		}
+	}
+	
+	private void buildContents() {
+		contents = new HashMap<>();
+		for(DNXString string : list) {
+			contents.putIfAbsent(string.get(), string);
+		}
+	}
+}
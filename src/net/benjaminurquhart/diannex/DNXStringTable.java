@@ -0,0 +1,84 @@
+package net.benjaminurquhart.diannex;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// Raw UTF-8 contents of a string table, kept in one array. Strings backed by
+// a table are only turned into Java strings when someone asks for them.
+class DNXStringTable {
+	
+	private final byte[] data;
+	
+	// Start of every string in data, plus the end of the last one
+	private final int[] offsets;
+	
+	// Reads the given number of NUL terminated strings, or everything left
+	// in the reader if count is negative
+	protected DNXStringTable(ByteBuffer reader, int count) {
+		this(reader, offsetsOf(reader, count));
+	}
+	
+	// Offsets of the strings starting at the reader's position, without moving it
+	protected static int[] offsetsOf(ByteBuffer reader, int count) {
+		int start = reader.position(), end = start, limit = reader.limit();
+		int[] offsets = new int[Math.max(count, 0) + 1];
+		int size = 0;
+		
+		while(count < 0 ? end < limit : size < count) {
+			if(end >= limit) {
+				throw new IllegalStateException("Ran out of bytes while parsing string " + size + " of " + count);
+			}
+			if(reader.get(end++) == 0) {
+				if(++size >= offsets.length) {
+					offsets = Arrays.copyOf(offsets, offsets.length * 2);
+				}
+				offsets[size] = end - start;
+			}
+		}
+		if(count < 0 && offsets[size] != end - start) {
+			throw new IllegalStateException("Ran out of bytes while parsing string " + size);
+		}
+		return Arrays.copyOf(offsets, size + 1);
+	}
+	
+	// Strings at already known offsets, as produced by offsets()
+	protected DNXStringTable(ByteBuffer reader, int[] offsets) {
+		if(offsets.length == 0 || offsets[0] != 0) {
+			throw new IllegalArgumentException("Invalid string offsets");
+		}
+		data = new byte[offsets[offsets.length - 1]];
+		reader.get(data);
+		if(data.length > 0 && data[data.length - 1] != 0) {
+			throw new IllegalStateException("Unterminated string table");
+		}
+		this.offsets = offsets;
+	}
+	
+	protected int[] offsets() {
+		return offsets;
+	}
+	
+	protected int size() {
+		return offsets.length - 1;
+	}
+	
+	protected String get(int index) {
+		return new String(data, offsets[index], offsets[index + 1] - offsets[index] - 1, StandardCharsets.UTF_8);
+	}
+	
+	// Encoded bytes of the string, including its terminator
+	protected ByteBuffer bytes(int index) {
+		return ByteBuffer.wrap(data, offsets[index], offsets[index + 1] - offsets[index]);
+	}
+	
+	protected List<DNXString> strings() {
+		List<DNXString> out = new ArrayList<>(size());
+		for(int i = 0; i < size(); i++) {
+			out.add(new DNXString(this, i));
+		}
+		return out;
+	}
+}
@@ -0,0 +1,112 @@
+package net.benjaminurquhart.diannex;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+// Translation strings kept in their own file, which can stand in for the
+// translation table of a DNXFile. The file is only mapped once a string is
+// first needed, and strings are only decoded when they're asked for.
+//
+// Format: "DNXT", then a little endian string count followed by that many
+// NUL terminated UTF-8 strings (the same layout as the translation section).
+public class DNXTranslationPack {
+	
+	private static final int MAGIC = 0x444e5854; // DNXT
+	
+	private final File file;
+	
+	private volatile ByteBuffer data;
+	private int[] offsets;
+	private String[] cache;
+	
+	public DNXTranslationPack(File file) {
+		if(file == null) {
+			throw new IllegalArgumentException("null file");
+		}
+		this.file = file;
+	}
+	
+	public static void write(File file, List<DNXString> strings) throws IOException {
+		long size = 8;
+		for(DNXString string : strings) {
+			size += string.getLength();
+		}
+		if(size > Integer.MAX_VALUE - 8) {
+			throw new IllegalStateException("Translation pack is too large to serialize");
+		}
+		DNXOutputBuffer out = new DNXOutputBuffer((int)size);
+		ByteBuffer buffer = out.reserve((int)size);
+		buffer.putInt(Integer.reverseBytes(MAGIC));
+		buffer.putInt(strings.size());
+		for(DNXString string : strings) {
+			string.writeTo(null, buffer);
+		}
+		try(FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			out.writeTo(channel);
+		}
+	}
+	
+	private ByteBuffer load() {
+		ByteBuffer out = data;
+		if(out != null) {
+			return out;
+		}
+		synchronized(this) {
+			if(data != null) {
+				return data;
+			}
+			try(FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+				out = channel.map(MapMode.READ_ONLY, 0, channel.size());
+			}
+			catch(IOException e) {
+				throw new IllegalStateException("Failed to load translation pack " + file, e);
+			}
+			if(out.remaining() < 8 || out.getInt() != MAGIC) {
+				throw new IllegalStateException("Not a translation pack: " + file);
+			}
+			out.order(ByteOrder.LITTLE_ENDIAN);
+			
+			int size = out.getInt();
+			offsets = DNXStringTable.offsetsOf(out, size);
+			cache = new String[size];
+			data = out.slice();
+			return data;
+		}
+	}
+	
+	public File getFile() {
+		return file;
+	}
+	
+	public int size() {
+		load();
+		return cache.length;
+	}
+	
+	public String get(int index) {
+		ByteBuffer data = load();
+		String out = cache[index];
+		if(out == null) {
+			byte[] bytes = new byte[offsets[index + 1] - offsets[index] - 1];
+			data.get(offsets[index], bytes);
+			cache[index] = out = new String(bytes, StandardCharsets.UTF_8);
+		}
+		return out;
+	}
+	
+	public String getClean(int index) {
+		return DNXString.clean(get(index));
+	}
+	
+	@Override
+	public String toString() {
+		return String.format("DNXTranslationPack [%s]", file);
+	}
+}
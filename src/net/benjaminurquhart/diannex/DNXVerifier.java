@@ -0,0 +1,285 @@
+package net.benjaminurquhart.diannex;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+import net.benjaminurquhart.diannex.DNXBytecode.Opcode;
+
+// Structural checks on a serialized (uncompressed) file, done on the encoded
+// bytes directly instead of loading them again. Checks that every section has
+// the size it claims, that instructions and jumps line up, and that every
+// string, function and bytecode reference points at something that exists.
+class DNXVerifier {
+	
+	private final ByteBuffer reader;
+	private final DNXHeader header;
+	private final int version;
+	
+	private int[] sceneNames, functionNames, definitionNames, definitionReferences;
+	private int[] entryPositions = new int[64];
+	private int entryPositionCount;
+	
+	private int functionCount, stringCount, translationCount;
+	
+	// Byte offsets (v3+) or indices (v2) of every instruction, plus the end
+	private int[] instructions;
+	private int instructionCount;
+	
+	// Last v2 instruction looked up by position, and where it starts
+	private int cursor, cursorIndex;
+	
+	private DNXVerifier(ByteBuffer data) {
+		reader = data.duplicate();
+		header = DNXHeader.read(reader);
+		version = header.version;
+		if(header.compressed) {
+			throw new IllegalArgumentException("Can only verify uncompressed files");
+		}
+		if(reader.remaining() != header.size) {
+			fail("Expected " + header.size + " bytes of data, got " + reader.remaining());
+		}
+		reader.order(ByteOrder.LITTLE_ENDIAN);
+	}
+	
+	protected static void verify(ByteBuffer data) {
+		try {
+			new DNXVerifier(data).verify();
+		}
+		catch(BufferUnderflowException | IndexOutOfBoundsException e) {
+			fail("Ran out of bytes");
+		}
+	}
+	
+	private static void fail(String message) {
+		throw new IllegalStateException("Did not serialize file correctly: " + message);
+	}
+	
+	private void verify() {
+		int section = beginSection();
+		sceneNames = readEntries(false);
+		endSection(section, "scenes");
+		
+		section = beginSection();
+		functionNames = readEntries(false);
+		functionCount = functionNames.length;
+		endSection(section, "functions");
+		
+		section = beginSection();
+		definitionNames = readEntries(true);
+		endSection(section, "definitions");
+		
+		ByteBuffer code = readCode();
+		
+		section = beginSection();
+		stringCount = readStrings("strings");
+		endSection(section, "strings");
+		
+		if(header.internalTranslationFile) {
+			section = beginSection();
+			translationCount = readStrings("translations");
+			endSection(section, "translations");
+		}
+		
+		if(version >= 3) {
+			section = beginSection();
+			int count = reader.getInt();
+			for(int i = 0; i < count; i++) {
+				checkIndex(reader.getInt(), stringCount, "external function name");
+			}
+			endSection(section, "external functions");
+		}
+		if(reader.hasRemaining()) {
+			fail(reader.remaining() + " trailing bytes");
+		}
+		
+		for(int[] names : new int[][] { sceneNames, functionNames, definitionNames }) {
+			for(int name : names) {
+				checkIndex(name, stringCount, "entry name");
+			}
+		}
+		for(int reference : definitionReferences) {
+			if(reference < 0) {
+				checkIndex(reference ^ (1 << 31), stringCount, "definition string");
+			}
+			else if(header.internalTranslationFile) {
+				checkIndex(reference, translationCount, "definition translation string");
+			}
+		}
+		for(int i = 0; i < entryPositionCount; i++) {
+			if(entryPositions[i] >= 0 && !isInstruction(entryPositions[i], false)) {
+				fail("Entry bytecode position " + entryPositions[i] + " is not an instruction");
+			}
+		}
+		checkOperands(code);
+	}
+	
+	private int beginSection() {
+		if(version < 4) {
+			return -1;
+		}
+		int size = reader.getInt();
+		if(size < 0 || size > reader.remaining()) {
+			fail("Section size " + size + " out of bounds");
+		}
+		return reader.position() + size;
+	}
+	
+	private void endSection(int end, String name) {
+		if(end >= 0 && reader.position() != end) {
+			fail("Size of " + name + " section is off by " + (end - reader.position()) + " bytes");
+		}
+	}
+	
+	// Name indices of every entry
+	private int[] readEntries(boolean definitions) {
+		int count = reader.getInt();
+		checkCount(count, definitions ? 12 : 6);
+		int[] names = new int[count];
+		if(definitions) {
+			definitionReferences = new int[count];
+		}
+		for(int i = 0; i < count; i++) {
+			names[i] = reader.getInt();
+			if(definitions) {
+				definitionReferences[i] = reader.getInt();
+				addEntryPosition(reader.getInt());
+			}
+			else {
+				int positions = reader.getShort();
+				if(positions < 0) {
+					fail("Negative bytecode position count");
+				}
+				for(int j = 0; j < positions; j++) {
+					addEntryPosition(reader.getInt());
+				}
+			}
+		}
+		return names;
+	}
+	
+	private void addEntryPosition(int position) {
+		if(entryPositionCount == entryPositions.length) {
+			entryPositions = Arrays.copyOf(entryPositions, entryPositionCount * 2);
+		}
+		entryPositions[entryPositionCount++] = position;
+	}
+	
+	// Walks every instruction, returning the code for the operand checks
+	private ByteBuffer readCode() {
+		int count = version >= 3 ? -1 : reader.getInt();
+		int numBytes = version >= 3 ? reader.getInt() : -1;
+		if(numBytes > reader.remaining()) {
+			fail("Bytecode size " + numBytes + " out of bounds");
+		}
+		checkCount(count, 1);
+		
+		int start = reader.position();
+		int limit = version >= 3 ? start + numBytes : reader.limit();
+		instructions = new int[Math.max(count, 16) + 1];
+		instructionCount = 0;
+		
+		int pos = start;
+		while(version >= 3 ? pos < limit : instructionCount < count) {
+			if(pos >= reader.limit()) {
+				fail("Ran out of bytes while reading bytecode");
+			}
+			if(instructionCount + 1 >= instructions.length) {
+				instructions = Arrays.copyOf(instructions, instructions.length * 2);
+			}
+			instructions[instructionCount++] = version >= 3 ? pos - start : instructionCount - 1;
+			try {
+				pos += DNXBytecode.lengthOf(reader.get(pos));
+			}
+			catch(IllegalArgumentException e) {
+				fail(e.getMessage() + " at " + (pos - start));
+			}
+		}
+		if(pos > limit) {
+			fail("Last instruction runs past the end of the bytecode");
+		}
+		instructions[instructionCount] = version >= 3 ? pos - start : instructionCount;
+		
+		ByteBuffer code = reader.slice(start, pos - start).order(ByteOrder.LITTLE_ENDIAN);
+		reader.position(pos);
+		return code;
+	}
+	
+	private boolean isInstruction(int position, boolean allowEnd) {
+		if(version < 3) {
+			return position >= 0 && (allowEnd ? position <= instructionCount : position < instructionCount);
+		}
+		int index = Arrays.binarySearch(instructions, 0, instructionCount + 1, position);
+		return index >= 0 && (allowEnd || index < instructionCount);
+	}
+	
+	private void checkOperands(ByteBuffer code) {
+		Opcode opcode;
+		int pos, end, arg;
+		for(int i = 0; i < instructionCount; i++) {
+			pos = version >= 3 ? instructions[i] : position(code, i);
+			opcode = Opcode.from(code.get(pos));
+			end = pos + opcode.getLength();
+			if(opcode.getType() == DNXBytecode.Type.DEFAULT || opcode.getType() == DNXBytecode.Type.FLOAT) {
+				continue;
+			}
+			arg = code.getInt(pos + 1);
+			
+			if(DNXBytecode.RELOCATABLE.contains(opcode)) {
+				int target = version >= 3 ? end + arg : i + arg;
+				if(!isInstruction(target, true)) {
+					fail(opcode + " at " + pos + " jumps to " + target + ", which is not an instruction");
+				}
+			}
+			else if(opcode == Opcode.CALL) {
+				checkIndex(arg, functionCount, "function");
+			}
+			else if(opcode == Opcode.PUSHS || opcode == Opcode.PUSHINTS) {
+				if(header.internalTranslationFile) {
+					checkIndex(arg, translationCount, "translation string");
+				}
+			}
+			else if(DNXBytecode.STRING_RESOLVE.contains(opcode)) {
+				checkIndex(arg, stringCount, "string");
+			}
+		}
+	}
+	
+	// v2 only stores instruction indices, so walk up to the one we want
+	private int position(ByteBuffer code, int index) {
+		if(index < cursorIndex) {
+			cursor = cursorIndex = 0;
+		}
+		while(cursorIndex < index) {
+			cursor += DNXBytecode.lengthOf(code.get(cursor));
+			cursorIndex++;
+		}
+		return cursor;
+	}
+	
+	private int readStrings(String name) {
+		int count = reader.getInt();
+		checkCount(count, 1);
+		try {
+			int[] offsets = DNXStringTable.offsetsOf(reader, count);
+			reader.position(reader.position() + offsets[count]);
+		}
+		catch(IllegalStateException e) {
+			fail(name + ": " + e.getMessage());
+		}
+		return count;
+	}
+	
+	private void checkCount(int count, int minLength) {
+		if(count < -1 || (long)count * minLength > reader.remaining()) {
+			fail("Count " + count + " out of bounds");
+		}
+	}
+	
+	private static void checkIndex(int index, int size, String kind) {
+		if(index < 0 || index >= size) {
+			fail(kind + " index " + index + " out of bounds (" + size + ")");
+		}
+	}
+}
@@ -0,0 +1,81 @@
+package net.benjaminurquhart.diannex;
+
+import net.benjaminurquhart.diannex.DNXBytecode.Opcode;
+
+// Callbacks for everything in a file, in the order it's stored. See DNXScanner.
+//
+// Entries, flags and instructions refer to strings and bytecode the same way
+// the file does: names are indices into the string table, and bytecode
+// positions are byte offsets into the bytecode section (instruction indices
+// in v2), -1 if missing. Operands are passed on as stored, so jumps are
+// relative to the end of the instruction in v3+ and to the instruction
+// itself in v2.
+//
+// Every call is forwarded to the next visitor by default, if there is one.
+public abstract class DNXVisitor {
+	
+	protected final DNXVisitor next;
+	
+	public DNXVisitor() {
+		this(null);
+	}
+	
+	public DNXVisitor(DNXVisitor next) {
+		this.next = next;
+	}
+	
+	public void visitHeader(int version, boolean compressed, boolean internalTranslationFile, int size) {
+		if(next != null) next.visitHeader(version, compressed, internalTranslationFile, size);
+	}
+	
+	public void visitScene(int index, int name, int position) {
+		if(next != null) next.visitScene(index, name, position);
+	}
+	
+	public void visitFunction(int index, int name, int position) {
+		if(next != null) next.visitFunction(index, name, position);
+	}
+	
+	// Flags of the scene or function visited last
+	public void visitFlag(int index, int valuePosition, int keyPosition) {
+		if(next != null) next.visitFlag(index, valuePosition, keyPosition);
+	}
+	
+	// The reference is a translation index if translation is set, a string index otherwise
+	public void visitDefinition(int index, int name, int reference, boolean translation, int position) {
+		if(next != null) next.visitDefinition(index, name, reference, translation, position);
+	}
+	
+	// Size of the bytecode in bytes for v3+, or the number of instructions for v2
+	public void visitCode(int size) {
+		if(next != null) next.visitCode(size);
+	}
+	
+	public void visitInstruction(int position, Opcode opcode, int arg1, int arg2, double argDouble) {
+		if(next != null) next.visitInstruction(position, opcode, arg1, arg2, argDouble);
+	}
+	
+	public void visitStrings(int count) {
+		if(next != null) next.visitStrings(count);
+	}
+	
+	public void visitString(int index, String value) {
+		if(next != null) next.visitString(index, value);
+	}
+	
+	public void visitTranslations(int count) {
+		if(next != null) next.visitTranslations(count);
+	}
+	
+	public void visitTranslation(int index, String value) {
+		if(next != null) next.visitTranslation(index, value);
+	}
+	
+	public void visitExternalFunction(int index, int name) {
+		if(next != null) next.visitExternalFunction(index, name);
+	}
+	
+	public void visitEnd() {
+		if(next != null) next.visitEnd();
+	}
+}
@@ -1,14 +1,40 @@
 package net.benjaminurquhart.diannex;
 
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
 
 import com.google.common.io.LittleEndianDataOutputStream;
 
 public interface IDNXSerializable {
-
+	
 	void serialize(DNXFile file, LittleEndianDataOutputStream stream) throws IOException;
 	
+	// Exact number of bytes serialize/writeTo produce, -1 if unknown
 	default int getLength() {
 		return -1;
 	}
+	
+	// Writes the same bytes as serialize straight into a little endian buffer
+	// with at least getLength bytes remaining
+	default void writeTo(DNXFile file, ByteBuffer buffer) {
+		OutputStream out = new OutputStream() {
+			@Override
+			public void write(int b) {
+				buffer.put((byte)b);
+			}
+			
+			@Override
+			public void write(byte[] bytes, int offset, int length) {
+				buffer.put(bytes, offset, length);
+			}
+		};
+		try {
+			serialize(file, new LittleEndianDataOutputStream(out));
+		}
+		catch(IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
 }
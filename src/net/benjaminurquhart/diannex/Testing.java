@@ -66,7 +66,7 @@ public class Testing {
 					}
 					owned = null;
 					for(DNXCompiled e : file.getEntries()) {
-						if(e.instructions.contains(entry)) {
+						if(file.decode(e).instructions.contains(entry)) {
 							owned = e;
 							break;
 						}
@@ -97,10 +97,13 @@ public class Testing {
 		DNXScene scene = file.sceneByName("stars.stands_setup");
 		System.out.print(DNXDecompiler.decompile(scene, file));
 		
-		//runScene(file, scene);
+		//DNXFile frozen = file.freeze();
+		//runScene(frozen, frozen.sceneByName(scene.name.get()));
 	}
 	
+	// Parallel scenes share the file with this one, so it has to be frozen (once, up front)
 	public static void runScene(DNXFile file, DNXScene scene) throws Exception {
+		requireFrozen(file);
 		DNXRuntime runtime = new DNXRuntime(file);
 		RuntimeContext context = runtime.getContext();
 		
@@ -141,6 +144,12 @@ public class Testing {
 		while(true) Thread.sleep(10);
 	}
 	
+	private static void requireFrozen(DNXFile file) {
+		if(!file.isFrozen()) {
+			throw new IllegalArgumentException("Scenes can only run on a frozen file, see DNXFile.freeze");
+		}
+	}
+	
 	public static void dump(DNXFile file) throws IOException {
 		File root = new File("output");
 		disassembleAll(file, file.getScenes(), root, "scenes");
@@ -313,9 +322,11 @@ public class Testing {
 		
 		@ExternalDNXFunction
 		public static void runSceneParallel(RuntimeContext context, String name) {
+			requireFrozen(context.file);
 			DNXRuntime runtime = new DNXRuntime(context.file);
 			RuntimeContext ctx = runtime.getContext();
 			ctx.globalVars = context.globalVars;
+			ctx.setTranslationPack(context.getTranslationPack());
 			ctx.isParallelScene = true;
 			ctx.parent = context;
 			
@@ -22,6 +22,7 @@ public class DNXDecompiler {
 
 	public static String decompile(DNXCompiled entry, DNXFile file) {
 		DecompileContext context = new DecompileContext(file);
+		file.decode(entry);
 		context.blocks = DNXDisassembler.createBlocks(entry);
 		context.workQueue.add(context.blocks.get(0));
 		while(!context.workQueue.isEmpty()) {
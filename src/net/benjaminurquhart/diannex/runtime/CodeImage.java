@@ -0,0 +1,207 @@
+package net.benjaminurquhart.diannex.runtime;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import net.benjaminurquhart.diannex.DNXBytecode;
+import net.benjaminurquhart.diannex.DNXCompiled;
+import net.benjaminurquhart.diannex.DNXFile;
+import net.benjaminurquhart.diannex.DNXList;
+import net.benjaminurquhart.diannex.DNXBytecode.Opcode;
+
+// A list of instructions linked against the file it came from, so the interpreter
+// never has to look up strings or functions by name while it's running.
+//
+// Every instruction takes up STRIDE ints of the code: its opcode, both of its
+// arguments and the index of its constant in the pool (or NO_CONSTANT). Constants are
+// PUSHD literals, resolved strings and functions. CALLEXT has its first argument
+// replaced with an external function slot, which contexts use to cache their lookups.
+//
+// Images of entries and of the file's flattened bytecode are kept with their file and
+// reused until anything they were built from changes: the instructions or the string
+// and function tables (see DNXFile#getModificationCount). Any other list of
+// instructions is linked every time it runs.
+class CodeImage {
+	
+	protected static final int STRIDE = 4;
+	protected static final int NO_CONSTANT = -1;
+	
+	private static final Opcode[] OPCODES = Opcode.values();
+	
+	// Key of the flattened bytecode's image
+	private static final Object PROGRAM = new Object();
+	
+	// Dropped along with their file
+	private static final Map<DNXFile, Linkage> LINKAGES = new WeakHashMap<>();
+	
+	protected final DNXBytecode[] source;
+	protected final int[] code;
+	protected final Object[] pool;
+	
+	// Where the CALLEXT slots are numbered
+	protected final Linkage linkage;
+	
+	private final List<DNXBytecode> instructions;
+	private final long stamp;
+	
+	// Everything linked against one file. External function slots are numbered per
+	// file, so a context only ever needs as many as its file uses.
+	protected static class Linkage {
+		
+		// Only the latest image of each entry is kept
+		private final Map<Object, CodeImage> images = new IdentityHashMap<>();
+		private final Map<String, Integer> slots = new HashMap<>();
+		
+		private synchronized int slotOf(String name) {
+			return slots.computeIfAbsent(name, n -> slots.size());
+		}
+	}
+	
+	private CodeImage(DNXFile file, List<DNXBytecode> instructions, Linkage linkage) {
+		// Taken first, so changes made while linking are caught next time
+		this.stamp = stampOf(file, instructions);
+		this.instructions = instructions;
+		this.linkage = linkage;
+		this.source = instructions.toArray(DNXBytecode[]::new);
+		this.code = new int[source.length * STRIDE];
+		
+		List<Object> pool = new ArrayList<>();
+		Map<Object, Integer> indices = new HashMap<>();
+		
+		DNXBytecode inst;
+		Object constant;
+		for(int i = 0, at = 0; i < source.length; i++, at += STRIDE) {
+			inst = source[i];
+			code[at] = inst.getOpcode().ordinal();
+			code[at + 1] = inst.getFirstArg();
+			code[at + 2] = inst.getSecondArg();
+			
+			// Anything that can't be resolved now is left to fail when (and if) it runs
+			try {
+				constant = constantOf(file, inst);
+			}
+			catch(RuntimeException e) {
+				constant = null;
+			}
+			if(constant == null) {
+				code[at + 3] = NO_CONSTANT;
+				continue;
+			}
+			if(inst.getOpcode() == Opcode.CALLEXT) {
+				code[at + 1] = linkage.slotOf((String)constant);
+			}
+			code[at + 3] = indices.computeIfAbsent(constant, c -> {
+				pool.add(c);
+				return pool.size() - 1;
+			});
+		}
+		this.pool = pool.toArray();
+	}
+	
+	protected static CodeImage of(DNXFile file, DNXCompiled entry) {
+		return cached(file, entry, file.decode(entry).instructions);
+	}
+	
+	// See DNXFile#getBytecode
+	protected static CodeImage ofProgram(DNXFile file, List<DNXBytecode> bytecode) {
+		return cached(file, PROGRAM, bytecode);
+	}
+	
+	protected static CodeImage link(DNXFile file, List<DNXBytecode> instructions) {
+		return new CodeImage(file, instructions, linkageOf(file));
+	}
+	
+	private static CodeImage cached(DNXFile file, Object key, List<DNXBytecode> instructions) {
+		Linkage linkage = linkageOf(file);
+		CodeImage image;
+		synchronized(linkage) {
+			image = linkage.images.get(key);
+		}
+		if(image != null && image.matches(file, instructions)) {
+			return image;
+		}
+		image = new CodeImage(file, instructions, linkage);
+		synchronized(linkage) {
+			linkage.images.put(key, image);
+		}
+		return image;
+	}
+	
+	private static Linkage linkageOf(DNXFile file) {
+		synchronized(LINKAGES) {
+			return LINKAGES.computeIfAbsent(file, f -> new Linkage());
+		}
+	}
+	
+	private static Object constantOf(DNXFile file, DNXBytecode inst) {
+		switch(inst.getOpcode()) {
+		case PUSHD:
+			return Double.valueOf(inst.getDoubleArg());
+		case CALL:
+			return file.getFunctions().get(inst.getFirstArg());
+		default:
+			break;
+		}
+		if(DNXBytecode.STRING_RESOLVE.contains(inst.getOpcode())) {
+			return inst.parseFirst(file, false);
+		}
+		return null;
+	}
+	
+	// Lists that don't count their own changes are compared in full
+	private boolean matches(DNXFile file, List<DNXBytecode> instructions) {
+		if(instructions != this.instructions || stampOf(file, instructions) != stamp) {
+			return false;
+		}
+		if(instructions instanceof DNXList) {
+			return true;
+		}
+		if(instructions.size() != source.length) {
+			return false;
+		}
+		for(int i = 0; i < source.length; i++) {
+			if(instructions.get(i) != source[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	// The file counts changes to everything it owns. The list's own count is added for
+	// entries the file doesn't own, neither ever goes down so the sum moves whenever
+	// either one does.
+	private static long stampOf(DNXFile file, List<DNXBytecode> instructions) {
+		return (long)file.getModificationCount() + (instructions instanceof DNXList ? ((DNXList<?>)instructions).changes() : 0);
+	}
+	
+	protected int size() {
+		return source.length;
+	}
+	
+	protected Opcode opcode(int ptr) {
+		return OPCODES[code[ptr * STRIDE]];
+	}
+	
+	protected int firstArg(int ptr) {
+		return code[ptr * STRIDE + 1];
+	}
+	
+	protected int secondArg(int ptr) {
+		return code[ptr * STRIDE + 2];
+	}
+	
+	// null if the instruction has no constant or it couldn't be linked
+	protected Object constant(int ptr) {
+		int index = code[ptr * STRIDE + 3];
+		return index == NO_CONSTANT ? null : pool[index];
+	}
+	
+	@Override
+	public String toString() {
+		return String.format("CodeImage [%d instructions, %d constants]", source.length, pool.length);
+	}
+}
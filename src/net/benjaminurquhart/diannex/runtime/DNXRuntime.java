@@ -13,13 +13,19 @@ import java.util.concurrent.CompletableFuture;
 import net.benjaminurquhart.diannex.DNXBytecode;
 import net.benjaminurquhart.diannex.DNXFile;
 import net.benjaminurquhart.diannex.DNXFlag;
+import net.benjaminurquhart.diannex.DNXFunction;
+import net.benjaminurquhart.diannex.DNXTranslationPack;
 import net.benjaminurquhart.diannex.DNXBytecode.Opcode;
 import net.benjaminurquhart.diannex.DNXCompiled;
+import net.benjaminurquhart.diannex.runtime.Value.Type;
 
 public class DNXRuntime {
 	
 	public static final int MAX_CALLSTACK_DEPTH = 10;
 	
+	// Number of instructions shown when reporting an error
+	private static final int HISTORY_SIZE = 10;
+	
 	private static final Set<Opcode> BANNED_IN_CHOICE = EnumSet.of(
 			Opcode.CHOICEBEG,
 			Opcode.CHOOSEADD,
@@ -87,6 +93,7 @@ public class DNXRuntime {
 	}
 	
 	private Value internalEval(DNXCompiled entry) {
+		context.file.decode(entry);
 		if(context.flags == null) {
 			context.flags = new HashMap<>();
 		}
@@ -110,74 +117,71 @@ public class DNXRuntime {
 		}
 		if(!context.enforcePointerBounds) {
 			List<DNXBytecode> instructions = context.file.getBytecode();
-			int start = instructions.indexOf(entry.instructions.get(0));
-			return internalEval(instructions, start);
+			int start = context.file.indexOfEntryPoint(entry.instructions.get(0));
+			return internalEval(CodeImage.ofProgram(context.file, instructions), start);
 		}
-		return internalEval(entry.instructions);
+		return internalEval(CodeImage.of(context.file, entry), 0);
 	}
 	
+	// Lists that don't belong to an entry are linked again every time they run
 	private Value internalEval(List<DNXBytecode> instructions) {
-		return internalEval(instructions, 0);
+		return internalEval(CodeImage.link(context.file, instructions), 0);
 	}
 	
-	private Value internalEval(List<DNXBytecode> instructions, int startPtr) {
+	private Value internalEval(CodeImage image, int startPtr) {
 		if(context.depth >= MAX_CALLSTACK_DEPTH) {
 			throw new IllegalStateException("Maximum callstack depth reached (" + MAX_CALLSTACK_DEPTH + ")");
 		}
-		DNXBytecode[] insts = instructions.toArray(DNXBytecode[]::new);
-		DNXBytecode inst;
-		
-		String stackStr = null, instStr;
+		Opcode opcode;
 		
-		List<String> prevInstructions = new ArrayList<>();
+		// Only pointers (and the depth they ran at, in the upper half) are kept
+		// track of, they're turned into text if something goes wrong
+		long[] history = new long[HISTORY_SIZE];
+		int executed = 0, stackSize = 0;
 		
-		for(int ptr = startPtr; ptr < insts.length && !halt; ptr++) {
+		for(int ptr = startPtr; ptr < image.size() && !halt; ptr++) {
 			
 			while(suspended);
 			
 			context.ptr = ptr;
-			inst = insts[ptr];
+			opcode = image.opcode(ptr);
 			
-			instStr = ">".repeat(context.depth) + " " + ptr + ": " + inst.toString(context.file);
-			
-			prevInstructions.add(instStr);
-			while(prevInstructions.size() > 10) {
-				prevInstructions.remove(0);
-			}
+			history[executed++ % HISTORY_SIZE] = (long)context.depth << 32 | ptr;
 			
-			if(inst.getOpcode() == Opcode.RET || inst.getOpcode() == Opcode.EXIT) {
+			if(opcode == Opcode.RET || opcode == Opcode.EXIT) {
 				break;
 			}
-			stackStr = stackToStr(context.stack);
+			stackSize = context.stack.size();
 			
 			if(context.isVerbose()) {
-				System.out.println(instStr + " " + stackStr);
+				System.out.println(describe(image, ptr, context.depth) + " " + stackToStr(context.stack));
 			}
 			
 			try {
-				if(evalSingle(inst)) {
-					ptr += inst.getFirstArg() - 1;
+				if(evalSingle(image, ptr, opcode)) {
+					ptr += image.firstArg(ptr) - 1;
 				}
 				else if(context.choiced) {
 					context.clearChoiceState();
 					ptr = context.ptr - 1;
 				}
 				
-				if(ptr < -1 || ptr >= insts.length - 1) {
+				if(ptr < -1 || ptr >= image.size() - 1) {
 					throw new IllegalStateException("Pointer moved out of bounds: " + ptr);
 				}
 			}
 			catch(Throwable e) {
 				System.out.flush();
 				System.err.flush();
-				System.err.println("Execution error at instruction " + ptr + ": " + inst.toString(context.file));
-				if(prevInstructions.size() > 1) {
-					System.err.println("Last " + prevInstructions.size() + " instructions:");
-					for(String prev : prevInstructions) {
-						System.err.println(prev);
+				System.err.println("Execution error at instruction " + ptr + ": " + image.source[ptr].toString(context.file));
+				int count = Math.min(executed, HISTORY_SIZE);
+				if(count > 1) {
+					System.err.println("Last " + count + " instructions:");
+					for(int i = executed - count; i < executed; i++) {
+						System.err.println(describe(image, (int)history[i % HISTORY_SIZE], (int)(history[i % HISTORY_SIZE] >>> 32)));
 					}
 				}
-				System.err.println("Stack: " + stackStr);
+				System.err.println("Stack: " + stackToStr(context.stack) + " (" + stackSize + " values before the instruction)");
 				
 				if(!context.localVars.isEmpty()) {
 					System.err.println("Locals:");
@@ -200,44 +204,46 @@ public class DNXRuntime {
 		return context.stack.isEmpty() ? null : context.stack.peek();
 	}
 	
-	private boolean evalSingle(DNXBytecode inst) {
+	private boolean evalSingle(CodeImage image, int ptr, Opcode opcode) {
 		if(context.choiceBeg) {
-			if(BANNED_IN_CHOICE.contains(inst.getOpcode())) {
-				throw new IllegalStateException("Cannot execute " + inst.getOpcode() + " in choice mode");
+			if(BANNED_IN_CHOICE.contains(opcode)) {
+				throw new IllegalStateException("Cannot execute " + opcode + " in choice mode");
 			}
-			if(inst.getOpcode() == Opcode.TEXTRUN && context.didTextRun) {
+			if(opcode == Opcode.TEXTRUN && context.didTextRun) {
 				throw new IllegalStateException("Cannot execute textrun more than once in choice mode");
 			}
 		}
 		
-		int ptr = context.ptr;
-		
 		ValueStack stack = context.stack;
 		Value[] working = context.working;
 		
 		context.reclaim();
 		
-		switch(inst.getOpcode()) {
+		switch(opcode) {
 		case PUSHU:
 			stack.pushObj(null);
 			break;
 		case PUSHI:
-			stack.pushObj(inst.getFirstArg());
+			stack.push((long)image.firstArg(ptr));
 			break;
 		case PUSHD:
-			stack.pushObj(inst.getDoubleArg());
+			stack.push(((Double)image.constant(ptr)).doubleValue());
 			break;
 		case PUSHS:
+			stack.pushObj(translate(image, ptr));
+			break;
 		case PUSHBS:
-			stack.pushObj(inst.parseFirst(context.file, false));
+			stack.pushObj(stringOf(image, ptr));
 			break;
 		case PUSHINTS:
+			stack.pushObj(fillInterpolatedString(translate(image, ptr), image.secondArg(ptr)));
+			break;
 		case PUSHBINTS:
-			stack.pushObj(fillInterpolatedString(inst.parseFirst(context.file, false), inst.getSecondArg()));
+			stack.pushObj(fillInterpolatedString(stringOf(image, ptr), image.secondArg(ptr)));
 			break;
 		
 		case MAKEARR:
-			int size = inst.getFirstArg();
+			int size = image.firstArg(ptr);
 			Object[] arr = new Object[size];
 			for(int i = size - 1; i >= 0; i--) {
 				arr[i] = stack.pop(Object.class);
@@ -255,16 +261,16 @@ public class DNXRuntime {
 			break;
 		
 		case SETVARGLB:
-			context.setGlobal(inst.parseFirst(context.file, false), stack.pop());
+			context.setGlobal(stringOf(image, ptr), stack.popObj());
 			break;
 		case SETVARLOC:
-			context.setLocal(inst.getFirstArg(), stack.pop());
+			context.setLocal(image.firstArg(ptr), stack.popObj());
 			break;
 		case PUSHVARLOC:
-			stack.pushObj(context.getLocal(inst.getFirstArg()));
+			stack.pushObj(context.getLocal(image.firstArg(ptr)));
 			break;
 		case PUSHVARGLB:
-			stack.pushObj(context.getGlobal(inst.parseFirst(context.file, false)));
+			stack.pushObj(context.getGlobal(stringOf(image, ptr)));
 			break;
 			
 		case CHOICEBEG:
@@ -275,12 +281,12 @@ public class DNXRuntime {
 			
 		case CHOICEADD:
 			context.populate(2);
-			context.choicer.addChoice(working[0].get(String.class), working[1].get(double.class), ptr + inst.getFirstArg());
+			context.choicer.addChoice(working[0].get(String.class), working[1].get(double.class), ptr + image.firstArg(ptr));
 			break;
 		case CHOICEADDT:
 			context.populate(3);
 			if(working[2].get(boolean.class)) {
-				context.choicer.addChoice(working[1].get(String.class), working[0].get(double.class), ptr + inst.getFirstArg());
+				context.choicer.addChoice(working[1].get(String.class), working[0].get(double.class), ptr + image.firstArg(ptr));
 			}
 			break;
 		case CHOICESEL:
@@ -292,12 +298,12 @@ public class DNXRuntime {
 			if(context.choices == null) {
 				context.choices = new ArrayList<>();
 			}
-			context.choices.add(new Choice("-", stack.pop(double.class), ptr + inst.getFirstArg()));
+			context.choices.add(new Choice("-", stack.pop(double.class), ptr + image.firstArg(ptr)));
 			break;
 		case CHOOSEADDT:
 			context.populate(2);
 			if(working[1].get(boolean.class)) {
-				context.choices.add(new Choice("-", working[0].get(double.class), ptr + inst.getFirstArg()));
+				context.choices.add(new Choice("-", working[0].get(double.class), ptr + image.firstArg(ptr)));
 			}
 			break;
 		case CHOOSESEL:
@@ -319,129 +325,76 @@ public class DNXRuntime {
 			}
 			throw new IllegalStateException("Failed to choicesel! No option was selected.");
 		case POP:
-			stack.pop();
+			stack.drop(1);
 			break;
 		case DUP2:
-			stack.push(stack.peek());
+			stack.dup();
 		case DUP:
-			stack.push(stack.peek());
+			stack.dup();
 			break;
 		
 		case ADD:
-			context.populate(2);
-			stack.pushObj(working[0].add(working[1]));
-			break;
 		case SUB:
-			context.populate(2);
-			stack.pushObj(working[0].sub(working[1]));
-			break;
 		case MUL:
-			context.populate(2);
-			stack.pushObj(working[0].mul(working[1]));
-			break;
 		case DIV:
-			context.populate(2);
-			stack.pushObj(working[0].div(working[1]));
+			arithmetic(opcode, stack, working);
 			break;
 		case MOD:
-			context.populate(2);
-			if(working[0].isFloatingPoint() || working[1].isFloatingPoint()) {
-				stack.pushObj(working[0].get(double.class) % working[1].get(double.class));
+			if(stack.isFloatingPoint(1) || stack.isFloatingPoint(0)) {
+				double x = stack.doubleAt(1), y = stack.doubleAt(0);
+				stack.drop(2);
+				stack.push(x % y);
 			}
 			else {
-				stack.pushObj(working[0].get(long.class) % working[1].get(long.class));
+				long x = stack.longAt(1), y = stack.longAt(0);
+				stack.drop(2);
+				stack.push(x % y);
 			}
 			break;
 		case NEG:
-			context.populate(1);
-			stack.pushObj(-working[0].get(double.class));
+			stack.push(-stack.popDouble());
 			break;
 		case INV:
-			context.populate(1);
-			stack.pushObj(working[0].get(long.class) == 0 ? 1 : 0);
+			stack.push(stack.popLong() == 0 ? 1L : 0L);
 			break;
 			
 		case BITLS:
-			context.populate(2);
-			stack.pushObj(working[0].get(long.class) << working[1].get(long.class));
-			break;
 		case BITRS:
-			context.populate(2);
-			stack.pushObj(working[0].get(long.class) >> working[1].get(long.class));
-			break;
 		case BITAND:
-			context.populate(2);
-			stack.pushObj(working[0].get(long.class) & working[1].get(long.class));
-			break;
 		case BITOR:
-			context.populate(2);
-			stack.pushObj(working[0].get(long.class) | working[1].get(long.class));
-			break;
 		case BITXOR:
-			context.populate(2);
-			stack.pushObj(working[0].get(long.class) ^ working[1].get(long.class));
+			bitwise(opcode, stack);
 			break;
 		case BITNEG:
-			context.populate(1);
-			stack.pushObj(~working[0].get(long.class));
+			stack.push(~stack.popLong());
 			break;
 			
-		case POW:
-			context.populate(2);
-			stack.pushObj(Math.pow(working[0].get(double.class), working[1].get(double.class)));
+		case POW: {
+			double x = stack.doubleAt(1), y = stack.doubleAt(0);
+			stack.drop(2);
+			stack.push(Math.pow(x, y));
 			break;
+		}
 		
 		case CMPEQ:
-			context.populate(2);
-			stack.pushObj(working[0].get(Object.class).equals(working[1].get(Object.class)));
+			stack.push(equal(stack));
 			break;
-		case CMPGT:
-			context.populate(2);
-			if(working[0].isFloatingPoint() || working[1].isFloatingPoint()) {
-				stack.pushObj(working[0].get(double.class) > working[1].get(double.class));
-			}
-			else {
-				stack.pushObj(working[0].get(long.class) > working[1].get(long.class));
-			}
+		case CMPNEQ:
+			stack.push(!equal(stack));
 			break;
+		case CMPGT:
 		case CMPLT:
-			context.populate(2);
-			if(working[0].isFloatingPoint() || working[1].isFloatingPoint()) {
-				stack.pushObj(working[0].get(double.class) < working[1].get(double.class));
-			}
-			else {
-				stack.pushObj(working[0].get(long.class) < working[1].get(long.class));
-			}
-			break;
 		case CMPGTE:
-			context.populate(2);
-			if(working[0].isFloatingPoint() || working[1].isFloatingPoint()) {
-				stack.pushObj(working[0].get(double.class) >= working[1].get(double.class));
-			}
-			else {
-				stack.pushObj(working[0].get(long.class) >= working[1].get(long.class));
-			}
-			break;
 		case CMPLTE:
-			context.populate(2);
-			if(working[0].isFloatingPoint() || working[1].isFloatingPoint()) {
-				stack.pushObj(working[0].get(double.class) <= working[1].get(double.class));
-			}
-			else {
-				stack.pushObj(working[0].get(long.class) <= working[1].get(long.class));
-			}
-			break;
-		case CMPNEQ:
-			context.populate(2);
-			stack.pushObj(!working[0].get(Object.class).equals(working[1].get(Object.class)));
+			stack.push(compare(opcode, stack));
 			break;
 			
 		case J:
 			return true;
 		case JF:
-			return !stack.pop().get(boolean.class);
+			return !stack.popBoolean();
 		case JT:
-			return stack.pop().get(boolean.class);
+			return stack.popBoolean();
 			
 		case EXIT:
 		case RET:
@@ -458,15 +411,16 @@ public class DNXRuntime {
 			Map<Integer, Value> oldLocalVars = context.localVars;
 			Map<Integer, Value> oldFlags = context.flags;
 			context.localVars = new HashMap<>();
-			context.stack = new ValueStack();
+			context.stack = new ValueStack(context.provider);
 			context.flags = null;
 			
-			for(int i = 0; i < inst.getSecondArg(); i++) {
-				context.setLocal(i, stack.pop());
+			for(int i = 0; i < image.secondArg(ptr); i++) {
+				context.setLocal(i, stack.popObj());
 			}
 			
 			context.depth++;
-			stack.push(internalEval(context.file.functionByName(inst.parseFirst(context.file, false))));
+			stack.push(internalEval(functionOf(image, ptr)));
+			context.freeLocals();
 			context.localVars = oldLocalVars;
 			context.flags = oldFlags;
 			context.stack = stack;
@@ -475,13 +429,16 @@ public class DNXRuntime {
 			break;
 		case CALLEXT:
 			context.depth++;
-			stack.push(context.callExternal(inst.parseFirst(context.file, false), inst.getSecondArg()));
+			// Results are always handed out just for this call, so they can go straight back
+			Value result = callExternal(image, ptr);
+			stack.push(result);
+			context.provider.put(result);
 			context.ptr = ptr;
 			context.depth--;
 			break;
 			
 		case FREELOC:
-			context.freeLocal(inst.getFirstArg());
+			context.freeLocal(image.firstArg(ptr));
 			break;
 			
 		case SAVE:
@@ -496,24 +453,176 @@ public class DNXRuntime {
 			break;
 			
 		default:
-			throw new UnsupportedOperationException("Unimplemented opcode: " + inst.getOpcode());
+			throw new UnsupportedOperationException("Unimplemented opcode: " + opcode);
 		}
 
 		
 		return false;
 	}
 	
-	private String stackToStr(ValueStack stack) {
-		Value[] objs = new Value[stack.size()];
-		for(int i = 0; i < objs.length; i++) {
-			objs[i] = stack.pop();
+	// Numbers are done right on the stack, anything else (like strings) goes through Value.
+	// The left operand is the one below the top.
+	private void arithmetic(Opcode opcode, ValueStack stack, Value[] working) {
+		if(stack.isLong(1) && stack.isLong(0)) {
+			long x = stack.longAt(1), y = stack.longAt(0), r;
+			stack.drop(2);
+			switch(opcode) {
+			case ADD:
+				// Math.addExact
+				r = x + y;
+				if(((x ^ r) & (y ^ r)) >= 0) {
+					stack.push(r);
+					return;
+				}
+				break;
+			case SUB:
+				// Math.subtractExact
+				r = x - y;
+				if(((x ^ y) & (x ^ r)) >= 0) {
+					stack.push(r);
+					return;
+				}
+				break;
+			case MUL:
+				// Math.multiplyExact
+				r = x * y;
+				if(((Math.abs(x) | Math.abs(y)) >>> 31 == 0) || !((y != 0 && (r / y) != x) || (x == Long.MIN_VALUE && y == -1))) {
+					stack.push(r);
+					return;
+				}
+				break;
+			default:
+				if(x % y == 0) {
+					stack.push(x / y);
+					return;
+				}
+				break;
+			}
+			stack.push(arithmetic(opcode, (double)x, (double)y));
 		}
-		for(int i = objs.length - 1; i >= 0; i --) {
-			stack.pushObj(objs[i]);
+		else if(stack.isNumber(1) && stack.isNumber(0)) {
+			double x = stack.doubleAt(1), y = stack.doubleAt(0);
+			stack.drop(2);
+			stack.push(arithmetic(opcode, x, y));
 		}
+		else {
+			context.populate(2);
+			switch(opcode) {
+			case ADD: stack.pushObj(working[0].add(working[1])); break;
+			case SUB: stack.pushObj(working[0].sub(working[1])); break;
+			case MUL: stack.pushObj(working[0].mul(working[1])); break;
+			default: stack.pushObj(working[0].div(working[1])); break;
+			}
+		}
+	}
+	
+	private double arithmetic(Opcode opcode, double x, double y) {
+		switch(opcode) {
+		case ADD: return x + y;
+		case SUB: return x - y;
+		case MUL: return x * y;
+		default: return x / y;
+		}
+	}
+	
+	private void bitwise(Opcode opcode, ValueStack stack) {
+		long x = stack.longAt(1), y = stack.longAt(0);
+		stack.drop(2);
+		switch(opcode) {
+		case BITLS: stack.push(x << y); break;
+		case BITRS: stack.push(x >> y); break;
+		case BITAND: stack.push(x & y); break;
+		case BITOR: stack.push(x | y); break;
+		default: stack.push(x ^ y); break;
+		}
+	}
+	
+	// Same as calling equals on what the values hold. Long and Double are never equal
+	// to each other, and Double compares its bits.
+	private boolean equal(ValueStack stack) {
+		boolean out;
+		Type type = stack.typeAt(1);
+		switch(type) {
+		case LONG:
+			out = stack.typeAt(0) == type && stack.longAt(1) == stack.longAt(0);
+			break;
+		case DOUBLE:
+			out = stack.typeAt(0) == type && Double.doubleToLongBits(stack.doubleAt(1)) == Double.doubleToLongBits(stack.doubleAt(0));
+			break;
+		case STRING:
+			out = stack.typeAt(0) == type && stack.objectAt(1).equals(stack.objectAt(0));
+			break;
+		default:
+			out = stack.objectAt(1).equals(stack.objectAt(0));
+			break;
+		}
+		stack.drop(2);
+		return out;
+	}
+	
+	private boolean compare(Opcode opcode, ValueStack stack) {
+		boolean out;
+		if(stack.isFloatingPoint(1) || stack.isFloatingPoint(0)) {
+			double x = stack.doubleAt(1), y = stack.doubleAt(0);
+			switch(opcode) {
+			case CMPGT: out = x > y; break;
+			case CMPLT: out = x < y; break;
+			case CMPGTE: out = x >= y; break;
+			default: out = x <= y; break;
+			}
+		}
+		else {
+			long x = stack.longAt(1), y = stack.longAt(0);
+			switch(opcode) {
+			case CMPGT: out = x > y; break;
+			case CMPLT: out = x < y; break;
+			case CMPGTE: out = x >= y; break;
+			default: out = x <= y; break;
+			}
+		}
+		stack.drop(2);
+		return out;
+	}
+	
+	private String describe(CodeImage image, int ptr, int depth) {
+		return ">".repeat(depth) + " " + ptr + ": " + image.source[ptr].toString(context.file);
+	}
+	
+	// Top of the stack first
+	private String stackToStr(ValueStack stack) {
+		Value[] objs = stack.toArray();
+		Collections.reverse(Arrays.asList(objs));
 		return Arrays.deepToString(objs);
 	}
 	
+	// Strings missing from a pack fall back to the file's own translations
+	private String translate(CodeImage image, int ptr) {
+		DNXTranslationPack pack = context.getTranslationPack();
+		if(pack != null && image.firstArg(ptr) < pack.size()) {
+			return pack.getClean(image.firstArg(ptr));
+		}
+		return stringOf(image, ptr);
+	}
+	
+	// Anything the image couldn't link is looked up the old way, so it fails like it always did
+	private String stringOf(CodeImage image, int ptr) {
+		Object str = image.constant(ptr);
+		return str == null ? image.source[ptr].parseFirst(context.file, false) : (String)str;
+	}
+	
+	private DNXFunction functionOf(CodeImage image, int ptr) {
+		Object function = image.constant(ptr);
+		return function == null ? context.file.functionByName(image.source[ptr].parseFirst(context.file, false)) : (DNXFunction)function;
+	}
+	
+	private Value callExternal(CodeImage image, int ptr) {
+		String name = (String)image.constant(ptr);
+		if(name == null) {
+			return context.callExternal(image.source[ptr].parseFirst(context.file, false), image.secondArg(ptr));
+		}
+		return context.callExternal(image.linkage, image.firstArg(ptr), name, image.secondArg(ptr));
+	}
+	
 	private String fillInterpolatedString(String str, int argc) {
 		for(int i = 0; i < argc; i++) {
 			str = str.replace("${" + i + "}", context.stack.pop(String.class));
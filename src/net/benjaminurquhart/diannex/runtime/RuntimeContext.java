@@ -12,6 +12,7 @@ import java.util.function.BiConsumer;
 import java.util.function.BiFunction;
 
 import net.benjaminurquhart.diannex.DNXFile;
+import net.benjaminurquhart.diannex.DNXTranslationPack;
 
 public class RuntimeContext {
 	
@@ -47,11 +48,20 @@ public class RuntimeContext {
 	private BiFunction<String, Object[], ?> missingFunctionHandler = defaultMissingFunctionHandler;
 	private Map<String, ExternalFunction> externalFunctions = new HashMap<>();
 	
+	// Lookups for CodeImage's external function slots, MISSING_FUNCTION if there's nothing registered.
+	// Slots are numbered per file, so these only hold for the linkage they were made for.
+	private static final Object MISSING_FUNCTION = new Object();
+	private Object[] externalSlots = new Object[0];
+	private CodeImage.Linkage slotLinkage;
+	
 	protected BiConsumer<RuntimeContext, String> textrunHandler = defaultTextrunHandler;
 	
 	private boolean autodefineGlobals, headless, verbose;
 	private String typer = "Narrator";
 	
+	// Used instead of the file's own translations when set
+	private volatile DNXTranslationPack translationPack;
+	
 	public Map<Integer, Value> localVars = Collections.synchronizedMap(new HashMap<>());
 	public Map<String, Value> globalVars = Collections.synchronizedMap(new HashMap<>());
 	public ValueProvider provider = new ValueProvider();
@@ -99,8 +109,26 @@ public class RuntimeContext {
 	}
 	
 	public Value callExternal(String name, int argc) {
-		ExternalFunction function = externalFunctions.get(name);
-		
+		return callExternal(externalFunctions.get(name), name, argc);
+	}
+	
+	protected Value callExternal(CodeImage.Linkage linkage, int slot, String name, int argc) {
+		if(linkage != slotLinkage) {
+			Arrays.fill(externalSlots, null);
+			slotLinkage = linkage;
+		}
+		if(slot >= externalSlots.length) {
+			externalSlots = Arrays.copyOf(externalSlots, Math.max(slot + 1, externalSlots.length * 2));
+		}
+		Object function = externalSlots[slot];
+		if(function == null) {
+			function = externalFunctions.get(name);
+			externalSlots[slot] = function == null ? MISSING_FUNCTION : function;
+		}
+		return callExternal(function == MISSING_FUNCTION ? null : (ExternalFunction)function, name, argc);
+	}
+	
+	private Value callExternal(ExternalFunction function, String name, int argc) {
 		Class<?>[] types;
 		
 		if(function == null) {
@@ -165,6 +193,7 @@ public class RuntimeContext {
 		}
 		externalFunctions.put(function.getName(), function);
 		function.setValueProvider(provider);
+		Arrays.fill(externalSlots, null);
 	}
 	
 	public BiFunction<String, Object[], ?> getMissingExternalFunctionHandler() {
@@ -179,6 +208,27 @@ public class RuntimeContext {
 		return new HashSet<>(externalFunctions.values());
 	}
 	
+	public DNXTranslationPack getTranslationPack() {
+		return translationPack;
+	}
+	
+	public void setTranslationPack(DNXTranslationPack pack) {
+		translationPack = pack;
+	}
+	
+	// Picks one of the packs added to the file by name, or the file's own translations if null
+	public void setTranslationPack(String name) {
+		if(name == null) {
+			translationPack = null;
+			return;
+		}
+		DNXTranslationPack pack = file.getTranslationPack(name);
+		if(pack == null) {
+			throw new IllegalArgumentException("Unknown translation pack: " + name);
+		}
+		translationPack = pack;
+	}
+	
 	public void autodefineGlobals(boolean state) {
 		autodefineGlobals = state;
 	}
@@ -206,6 +256,15 @@ public class RuntimeContext {
 		return verbose;
 	}
 	
+	// Without pooling every Value the runtime hands out is a new one
+	public void setValuePooling(boolean pooling) {
+		provider.setPooling(pooling);
+	}
+	
+	public boolean isValuePooling() {
+		return provider.isPooling();
+	}
+	
 	public boolean isChoicing() {
 		return choiceBeg;
 	}
@@ -268,10 +327,22 @@ public class RuntimeContext {
 	}
 	
 	public void freeLocal(int index) {
-		if(localVars.containsKey(index) && flags != null && index < flags.size()) {
-			flags.put(index, localVars.get(index));
+		Value value = localVars.remove(index);
+		if(value == null) {
+			return;
+		}
+		if(flags != null && index < flags.size()) {
+			flags.put(index, new Value(value.get()));
 		}
-		localVars.remove(index);
+		provider.put(value);
+	}
+	
+	// For when the locals go out of scope, their values go back to the provider
+	protected void freeLocals() {
+		for(Value value : localVars.values()) {
+			provider.put(value);
+		}
+		localVars.clear();
 	}
 	
 	public Set<String> getGlobals() {
@@ -322,7 +393,7 @@ public class RuntimeContext {
 		}
 		saveRegister = null;
 		typer = "Narrator";
-		localVars.clear();
+		freeLocals();
 		stack.clear();
 		flags = null;
 		depth = 0;
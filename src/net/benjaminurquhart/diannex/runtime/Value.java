@@ -1,225 +1,381 @@
 package net.benjaminurquhart.diannex.runtime;
 
 import java.lang.reflect.InvocationTargetException;
-import java.lang.reflect.Method;
 import java.util.Arrays;
-import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
 
 public class Value {
 	
+	// What a value holds. Integers and booleans are stored as LONG, anything
+	// that isn't covered by the others (Float, Character, ...) is an OBJECT.
+	public static enum Type {
+		NULL,
+		LONG,
+		DOUBLE,
+		STRING,
+		ARRAY,
+		OBJECT
+	}
+	
+	// What get(Class) can be asked for. Boxed and primitive classes share a target,
+	// any class not listed here is OTHER (arrays are ARRAY).
+	private static enum Target {
+		OBJECT,
+		STRING,
+		BOOLEAN,
+		LONG,
+		INT,
+		DOUBLE,
+		FLOAT,
+		SHORT,
+		BYTE,
+		ARRAY,
+		OTHER
+	}
+	
+	// Numbers are passed unboxed, value is their box if there already is one
+	@FunctionalInterface
+	private static interface Coercion {
+		Object apply(long longValue, double doubleValue, Object value, Class<?> clazz);
+	}
+	
+	private static final Map<Class<?>, Target> TARGETS = new HashMap<>();
+	
+	// COERCIONS[type][target], built once so get(Class) is a couple of array reads
+	private static final Coercion[][] COERCIONS = new Coercion[Type.values().length][Target.values().length];
+	
 	public static final Value NULL;
 	
-	private static Map<Class<?>, Method> numGetters = new HashMap<>();
+	private Type type;
+	private long longValue;
+	private double doubleValue;
 	
-	private Map<Class<?>, Object> castCache;
-	private boolean locked;
+	// The boxed number for LONG and DOUBLE, made when first asked for
 	private Object value;
+	private boolean locked;
+	
+	// Set by the ValueProvider that handed this out: where it is in that
+	// provider's in-use list, or ValueProvider.FREE once it's been put back
+	protected ValueProvider provider;
+	protected int slot;
 	
 	static {
+		TARGETS.put(Object.class, Target.OBJECT);
+		TARGETS.put(String.class, Target.STRING);
+		TARGETS.put(boolean.class, Target.BOOLEAN);
+		TARGETS.put(Boolean.class, Target.BOOLEAN);
+		TARGETS.put(long.class, Target.LONG);
+		TARGETS.put(Long.class, Target.LONG);
+		TARGETS.put(int.class, Target.INT);
+		TARGETS.put(Integer.class, Target.INT);
+		TARGETS.put(double.class, Target.DOUBLE);
+		TARGETS.put(Double.class, Target.DOUBLE);
+		TARGETS.put(float.class, Target.FLOAT);
+		TARGETS.put(Float.class, Target.FLOAT);
+		TARGETS.put(short.class, Target.SHORT);
+		TARGETS.put(Short.class, Target.SHORT);
+		TARGETS.put(byte.class, Target.BYTE);
+		TARGETS.put(Byte.class, Target.BYTE);
+		
+		for(Type type : Type.values()) {
+			for(Target target : Target.values()) {
+				COERCIONS[type.ordinal()][target.ordinal()] = coercionFor(type, target);
+			}
+		}
+		
 		NULL = new Value(null);
 		NULL.locked = true;
 	}
 	
 	public Value(Object value) {
-		castCache = Collections.synchronizedMap(new HashMap<>());
 		update(value);
 	}
 	
+	public Type getType() {
+		return type;
+	}
+	
 	public boolean isFloatingPoint() {
-		if(value == null) {
-			return false;
-		}
-		return value.getClass() == float.class || value.getClass() == Float.class || value.getClass() == double.class || value.getClass() == Double.class;
+		return type == Type.DOUBLE || value instanceof Float;
 	}
 	
 	public boolean containsNumber() {
-		return value != null && (value instanceof Number);
+		return type == Type.LONG || type == Type.DOUBLE || value instanceof Number;
 	}
 	
 	public void update(Object obj) {
 		if(locked) {
 			throw new IllegalStateException("value marked as immutable");
 		}
-		if(obj == value) {
+		if(obj != null && obj == value) {
 			return;
 		}
-		castCache.clear();
-		if(obj instanceof Boolean) {
-			value = (long)(((boolean)obj) ? 1 : 0);
-		}
-		else if(obj != null && obj.getClass().isArray() && !Object[].class.isInstance(obj)) {
-			throw new IllegalArgumentException("Primitive arrays are not supported");
+		if(obj instanceof Long) {
+			update(((Long)obj).longValue());
+			value = obj;
 		}
 		else if(obj instanceof Integer) {
-			value = ((Integer)obj).longValue();
+			update(((Integer)obj).longValue());
+		}
+		else if(obj instanceof Boolean) {
+			update(((Boolean)obj) ? 1L : 0L);
 		}
- 		else {
+		else if(obj instanceof Double) {
+			update(((Double)obj).doubleValue());
+			value = obj;
+		}
+		else {
+			type = typeOf(obj);
 			value = obj;
 		}
 	}
 	
-	private static Method numGetterFor(Class<?> clazz) {
-		return numGetters.computeIfAbsent(clazz, c -> {
-			try {
-				String type = null;
-				if(clazz == Integer.class) {
-					type = "int";
-				}
-				else {
-					type = clazz.getSimpleName().toLowerCase();
-				}
-				return Number.class.getMethod(type + "Value");
-			}
-			catch(NoSuchMethodException e) {
-				return null;
-			}
-			catch(RuntimeException e) {
-				throw e;
-			}
-			catch(Throwable e) {
-				throw new RuntimeException(e);
-			}
-		});
+	public void update(long value) {
+		if(locked) {
+			throw new IllegalStateException("value marked as immutable");
+		}
+		this.type = Type.LONG;
+		this.longValue = value;
+		this.value = null;
+	}
+	
+	public void update(double value) {
+		if(locked) {
+			throw new IllegalStateException("value marked as immutable");
+		}
+		this.type = Type.DOUBLE;
+		this.doubleValue = value;
+		this.value = null;
+	}
+	
+	// Type of anything that isn't a Long or Double
+	protected static Type typeOf(Object obj) {
+		if(obj == null) {
+			return Type.NULL;
+		}
+		if(obj instanceof String) {
+			return Type.STRING;
+		}
+		if(obj instanceof Object[]) {
+			return Type.ARRAY;
+		}
+		if(obj.getClass().isArray()) {
+			throw new IllegalArgumentException("Primitive arrays are not supported");
+		}
+		return Type.OBJECT;
 	}
 	
 	public Object get() {
+		if(value == null) {
+			if(type == Type.LONG) {
+				value = longValue;
+			}
+			else if(type == Type.DOUBLE) {
+				value = doubleValue;
+			}
+		}
 		return value;
 	}
 	
 	@SuppressWarnings("unchecked")
 	public <T> T get(Class<T> clazz) {
-		if(!castCache.containsKey(clazz)) {
-			castCache.put(clazz, getInternal(clazz));
+		return (T)coerce(type, longValue, doubleValue, value, clazz);
+	}
+	
+	public long getLong() {
+		switch(type) {
+		case LONG: return longValue;
+		case DOUBLE: return (long)doubleValue;
+		default: return get(long.class);
 		}
-		return (T)castCache.get(clazz);
 	}
 	
-	@SuppressWarnings("unchecked")
-	private <T> T getInternal(Class<T> clazz) {
-		if(value == null || value.getClass() == clazz) {
-			//System.out.printf("%sGet '%s' (%s)%s\n", ANSI.GRAY, value, value == null ? null : value.getClass(), ANSI.RESET);
-			if(clazz.isPrimitive()) {
-				// Certified type boxing moment
-				if(clazz == boolean.class) {
-					return (T)Boolean.FALSE;
-				}
-				return clazz.cast(0);
-			}
-			return clazz.cast(value);
+	public double getDouble() {
+		switch(type) {
+		case LONG: return longValue;
+		case DOUBLE: return doubleValue;
+		default: return get(double.class);
 		}
-		Class<?> valClazz = value.getClass();
-		if(clazz == Object.class) {
-			//System.out.printf("%sGet '%s' (%s) as raw object%s\n", ANSI.GRAY, value, value == null ? null : value.getClass(), ANSI.RESET);
-			return (T)value;
+	}
+	
+	public boolean getBoolean() {
+		switch(type) {
+		case LONG: return longValue > 0;
+		case DOUBLE: return Math.round(doubleValue) != 0;
+		default: return get(boolean.class);
 		}
-		//System.out.printf("%sCast '%s' (%s) to %s%s\n", ANSI.GRAY, value, value == null ? null : value.getClass(), clazz, ANSI.RESET);
-		if(clazz.isArray()) {
-			if(valClazz.isArray()) {
-				if(clazz.isInstance(value)) {
-					return (T)value;
-				}
-				throw new ClassCastException("Cannot cast to an array of primitive type");
-			}
-			else {
-				throw new IllegalStateException("Attempting to read non-array as array");
-			}
+	}
+	
+	// Shared with ValueStack, which keeps the same fields in its lanes
+	protected static Object coerce(Type type, long longValue, double doubleValue, Object value, Class<?> clazz) {
+		if(type == Type.OBJECT && value.getClass() == clazz) {
+			return value;
 		}
-		if(clazz == boolean.class || clazz == Boolean.class) {
-			boolean ret = true;
-			if(this.isFloatingPoint()) {
-				ret = Math.round(get(double.class)) != 0;
-			}
-			else if(this.containsNumber()) {
-				ret = ((Number)value).longValue() > 0;
+		Target target = clazz.isArray() ? Target.ARRAY : TARGETS.getOrDefault(clazz, Target.OTHER);
+		return COERCIONS[type.ordinal()][target.ordinal()].apply(longValue, doubleValue, value, clazz);
+	}
+	
+	private static Coercion coercionFor(Type type, Target target) {
+		switch(type) {
+		case NULL:
+			return (l, d, value, clazz) -> {
+				if(!clazz.isPrimitive()) {
+					return null;
+				}
+				if(clazz == boolean.class) {
+					return Boolean.FALSE;
+				}
+				throw new ClassCastException("Cannot cast java.lang.Integer to " + clazz.getName());
+			};
+		case LONG:
+			switch(target) {
+			case OBJECT:
+			case LONG: return (l, d, value, clazz) -> value == null ? Long.valueOf(l) : value;
+			case STRING: return (l, d, value, clazz) -> Long.toString(l);
+			case BOOLEAN: return (l, d, value, clazz) -> l > 0;
+			case INT: return (l, d, value, clazz) -> (int)l;
+			case DOUBLE: return (l, d, value, clazz) -> (double)l;
+			case FLOAT: return (l, d, value, clazz) -> (float)l;
+			case SHORT: return (l, d, value, clazz) -> (short)l;
+			case BYTE: return (l, d, value, clazz) -> (byte)l;
+			case ARRAY: return Value::notAnArray;
+			default: return (l, d, value, clazz) -> {
+				throw cannotCast(Long.class, clazz, null);
+			};
 			}
-			else if(value instanceof String) {
-				ret = !((String)value).isEmpty();
+		case DOUBLE:
+			switch(target) {
+			case OBJECT:
+			case DOUBLE: return (l, d, value, clazz) -> value == null ? Double.valueOf(d) : value;
+			case STRING: return (l, d, value, clazz) -> Double.toString(d);
+			case BOOLEAN: return (l, d, value, clazz) -> Math.round(d) != 0;
+			case LONG: return (l, d, value, clazz) -> (long)d;
+			case INT: return (l, d, value, clazz) -> (int)d;
+			case FLOAT: return (l, d, value, clazz) -> (float)d;
+			case SHORT: return (l, d, value, clazz) -> (short)d;
+			case BYTE: return (l, d, value, clazz) -> (byte)d;
+			case ARRAY: return Value::notAnArray;
+			default: return (l, d, value, clazz) -> {
+				throw cannotCast(Double.class, clazz, null);
+			};
 			}
-			return (T)Boolean.valueOf(ret);
-		}
-		// Don't ask
-		if(clazz.isPrimitive() && (value instanceof Number) && valClazz.getName().startsWith("java.lang") && ((valClazz == Integer.class && clazz == int.class) || value.getClass().getSimpleName().equalsIgnoreCase(clazz.getName()))) {
-			return (T)value;
-		}
-		if(clazz == String.class) {
-			// Implementation-dependent: the TS!Underswap Diannex runtime
-			// in particular will error when trying to read arrays as strings.
-			// This is more for debugging and shouldn't be relied upon.
-			if(valClazz.isArray()) {
-				return (T)Arrays.deepToString((Object[])value);
+		case STRING:
+			switch(target) {
+			case OBJECT:
+			case STRING: return (l, d, value, clazz) -> value;
+			case BOOLEAN: return (l, d, value, clazz) -> !((String)value).isEmpty();
+			case ARRAY: return Value::notAnArray;
+			case OTHER: return (l, d, value, clazz) -> valueOf(value, clazz);
+			default: return (l, d, value, clazz) -> parse(target, value, clazz);
 			}
-			return (T)String.valueOf(value);
-		}
-		Throwable cause = null;
-		try {
-			Method getter = null;
-			if(value instanceof Number) {
-				// Slow, but I value my sanity more
-				getter = numGetterFor(clazz);
-				if(getter != null) {
-					//System.out.printf("%sCast '%s' (%s) to %s via %s%s\n", ANSI.GRAY, value, value == null ? null : value.getClass(), clazz, getter, ANSI.RESET);
-					return (T)getter.invoke(value);
+		case ARRAY:
+			switch(target) {
+			case OBJECT: return (l, d, value, clazz) -> value;
+			case STRING: return (l, d, value, clazz) -> Arrays.deepToString((Object[])value);
+			case BOOLEAN: return (l, d, value, clazz) -> true;
+			case ARRAY: return (l, d, value, clazz) -> {
+				if(clazz.isInstance(value)) {
+					return value;
 				}
+				throw new ClassCastException("Cannot cast to an array of primitive type");
+			};
+			case OTHER: return (l, d, value, clazz) -> valueOf(value, clazz);
+			default: return (l, d, value, clazz) -> parse(target, value, clazz);
 			}
-			else {
-				// I might not keep this in since it might be going a bit too far 
-				// with type coercion. What this does basically is turn the value into
-				// a string and try to parse the string value into the requested object.
-				//
-				// Right now it's only used to turn strings containing ints into a 
-				// numerical type (technically it also parses doubles, but the runtime
-				// doesn't handle it) meaning you can do dumb stuff like "2" - 1.
-				if(clazz.isPrimitive()) {
-					Class<? extends Number> realClazz;
-					if(clazz == int.class) {
-						realClazz = Integer.class;
-					}
-					else {
-						String name = clazz.getName();
-						if(name.length() == 1) {
-							name = name.toUpperCase();
-						}
-						else {
-							name = name.substring(0, 1).toUpperCase() + name.substring(1);
-						}
-						realClazz = (Class<? extends Number>)Class.forName("java.lang." + name);
-					}
-					getter = realClazz.getMethod("valueOf", String.class);
+		default:
+			switch(target) {
+			case OBJECT: return (l, d, value, clazz) -> value;
+			case STRING: return (l, d, value, clazz) -> String.valueOf(value);
+			case BOOLEAN: return (l, d, value, clazz) -> {
+				if(value instanceof Float) {
+					return Math.round(((Float)value).doubleValue()) != 0;
 				}
-				else {
-					getter = clazz.getMethod("valueOf", String.class);
+				return !(value instanceof Number) || ((Number)value).longValue() > 0;
+			};
+			case ARRAY: return Value::notAnArray;
+			case OTHER: return (l, d, value, clazz) -> {
+				if(value instanceof Number) {
+					throw cannotCast(value.getClass(), clazz, null);
 				}
-				return (T)getter.invoke(null, String.valueOf(value));
+				return valueOf(value, clazz);
+			};
+			default: return (l, d, value, clazz) -> {
+				if(value instanceof Number) {
+					return convert(target, (Number)value);
+				}
+				return parse(target, value, clazz);
+			};
 			}
 		}
-		catch(IllegalAccessException | NoSuchMethodException | ClassNotFoundException e) {
-			cause = e;
+	}
+	
+	private static Object convert(Target target, Number number) {
+		switch(target) {
+		case LONG: return number.longValue();
+		case INT: return number.intValue();
+		case DOUBLE: return number.doubleValue();
+		case FLOAT: return number.floatValue();
+		case SHORT: return number.shortValue();
+		default: return number.byteValue();
 		}
-		catch(InvocationTargetException e) {
-			cause = e.getCause();
+	}
+	
+	// This is what lets you do dumb stuff like "2" - 1
+	private static Object parse(Target target, Object value, Class<?> clazz) {
+		String str = String.valueOf(value);
+		try {
+			switch(target) {
+			case LONG: return Long.valueOf(str);
+			case INT: return Integer.valueOf(str);
+			case DOUBLE: return Double.valueOf(str);
+			case FLOAT: return Float.valueOf(str);
+			case SHORT: return Short.valueOf(str);
+			default: return Byte.valueOf(str);
+			}
 		}
 		catch(RuntimeException e) {
-			throw e;
+			throw cannotCast(value.getClass(), clazz, e);
 		}
-		ClassCastException e = new ClassCastException(valClazz.getName() + " cannot be cast to " + clazz.getName());
-		try {
+	}
+	
+	// Any other class gets a shot at parsing the value through its own valueOf(String)
+	private static Object valueOf(Object value, Class<?> clazz) {
+		Throwable cause = null;
+		if(!clazz.isPrimitive()) {
+			try {
+				return clazz.getMethod("valueOf", String.class).invoke(null, String.valueOf(value));
+			}
+			catch(InvocationTargetException e) {
+				cause = e.getCause();
+			}
+			catch(ReflectiveOperationException e) {
+				cause = e;
+			}
+		}
+		throw cannotCast(value.getClass(), clazz, cause);
+	}
+	
+	private static Object notAnArray(long l, double d, Object value, Class<?> clazz) {
+		throw new IllegalStateException("Attempting to read non-array as array");
+	}
+	
+	private static ClassCastException cannotCast(Class<?> from, Class<?> to, Throwable cause) {
+		ClassCastException e = new ClassCastException(from.getName() + " cannot be cast to " + to.getName());
+		if(cause != null) {
 			e.initCause(cause);
 		}
-		catch(IllegalStateException ex) {}
-		
-		throw e;
+		return e;
 	}
 	
 	public Object add(Value other) {
-		if((value instanceof String) || (other.value instanceof String)) {
+		if(type == Type.STRING || other.type == Type.STRING) {
 			return this.get(String.class) + other.get(String.class);
 		}
 		if(!this.useDouble(other)) {
 			// Math.addExact
-			long x = this.get(long.class);
-			long y = other.get(long.class);
+			long x = this.getLong();
+			long y = other.getLong();
 			
 			long r = x + y;
 			
@@ -227,14 +383,14 @@ public class Value {
 				return r;
 			}
 		}
-		return this.get(double.class) + other.get(double.class);
+		return this.getDouble() + other.getDouble();
 	}
 	
 	public Object sub(Value other) {
 		if(!this.useDouble(other)) {
 			// Math.subtractExact
-			long x = this.get(long.class);
-			long y = other.get(long.class);
+			long x = this.getLong();
+			long y = other.getLong();
 			
 			long r = x - y;
 			
@@ -242,25 +398,25 @@ public class Value {
 				return r;
 			}
 		}
-		return this.get(double.class) - other.get(double.class);
+		return this.getDouble() - other.getDouble();
 	}
 	
 	public Object mul(Value other) {
-		if(value instanceof String) {
+		if(type == Type.STRING) {
 			if(other.get(int.class) < 0) {
 				return "";
 			}
 			return this.get(String.class).repeat(other.get(int.class));
 		}
 		if(!this.useDouble(other)) {
-			long x = this.get(long.class);
-			long y = other.get(long.class);
+			long x = this.getLong();
+			long y = other.getLong();
 			
 			// Math.multiplyExact
 	        long r = x * y;
 	        long ax = Math.abs(x);
 	        long ay = Math.abs(y);
-	        
+	
 	        if((ax | ay) >>> 31 == 0) {
 	        	return r;
 	        }
@@ -268,20 +424,20 @@ public class Value {
 	        	return r;
 	        }
 		}
-		return this.get(double.class) * other.get(double.class);
+		return this.getDouble() * other.getDouble();
 	}
 	
 	public Object div(Value other) {
 		
 		if(!this.useDouble(other)) {
-			long x = this.get(long.class);
-			long y = other.get(long.class);
+			long x = this.getLong();
+			long y = other.getLong();
 			
 			if(x % y == 0) {
 				return x / y;
 			}
 		}
-		return this.get(double.class) / other.get(double.class);
+		return this.getDouble() / other.getDouble();
 	}
 	
 	private boolean useDouble(Value other) {
@@ -289,20 +445,22 @@ public class Value {
 	}
 	
 	public Value clone() {
-		return new Value(value);
+		return new Value(get());
 	}
 	
 	@Override
 	public String toString() {
-		if(value == null || this.containsNumber()) {
-			return String.valueOf(value);
-		}
-		else if(value instanceof String) {
-			return '"' + value.toString() + '"';
-		}
-		else if(value.getClass().isArray()) {
-			return Arrays.deepToString((Object[])value);
+		switch(type) {
+		case NULL: return "null";
+		case LONG: return Long.toString(longValue);
+		case DOUBLE: return Double.toString(doubleValue);
+		case STRING: return '"' + value.toString() + '"';
+		case ARRAY: return Arrays.deepToString((Object[])value);
+		default:
+			if(value instanceof Number) {
+				return String.valueOf(value);
+			}
+			return String.format("{%s (%s)}", value.getClass().getName(), value);
 		}
-		return String.format("{%s (%s)}", value.getClass().getName(), value);
 	}
 }
@@ -1,55 +1,125 @@
 package net.benjaminurquhart.diannex.runtime;
 
+import java.util.Arrays;
 
-import java.util.HashSet;
-import java.util.Set;
-import java.util.Stack;
-
+// Hands out Values for the runtime to work with and takes them back when it's done.
+//
+// Values remember their own place in the in-use list, so nothing here hashes or locks
+// and handing out or putting back a value is a couple of array writes. Not thread safe,
+// every context has its own.
+//
+// With pooling off nothing is tracked at all: get always makes a new Value and put
+// does nothing.
 public class ValueProvider {
 	
+	protected static final int FREE = -1;
+	
+	private static final int INITIAL_CAPACITY = 16;
+	
+	private boolean pooling;
 	
-	private Set<Value> inUse;
-	private Stack<Value> values;
+	private Value[] inUse = new Value[INITIAL_CAPACITY];
+	private int inUseCount;
+	
+	private Value[] values = new Value[INITIAL_CAPACITY];
+	private int valueCount;
 	
 	public ValueProvider() {
-		values = new Stack<>();
-		for(int i = 0; i < 10; i++) {
-			values.add(new Value(null));
+		this(true);
+	}
+	
+	public ValueProvider(boolean pooling) {
+		this.pooling = pooling;
+		if(pooling) {
+			for(int i = 0; i < 10; i++) {
+				free(new Value(null));
+			}
+		}
+	}
+	
+	public boolean isPooling() {
+		return pooling;
+	}
+	
+	// Turning pooling off forgets every value, in use or not
+	public void setPooling(boolean pooling) {
+		if(!pooling) {
+			for(int i = 0; i < inUseCount; i++) {
+				inUse[i].provider = null;
+			}
+			for(int i = 0; i < valueCount; i++) {
+				values[i].provider = null;
+			}
+			Arrays.fill(inUse, 0, inUseCount, null);
+			Arrays.fill(values, 0, valueCount, null);
+			inUseCount = 0;
+			valueCount = 0;
 		}
-		inUse = new HashSet<>();
+		this.pooling = pooling;
 	}
 	
 	public Value get(Object obj) {
 		while(obj instanceof Value) {
 			obj = ((Value)obj).get();
 		}
+		if(!pooling) {
+			return new Value(obj);
+		}
 		
 		Value value;
-		if(values.isEmpty()) {
+		if(valueCount == 0) {
 			value = new Value(obj);
 		}
 		else {
-			value = values.pop();
+			value = values[--valueCount];
+			values[valueCount] = null;
+			value.update(obj);
 		}
-		value.update(obj);
-		inUse.add(value);
+		if(inUseCount == inUse.length) {
+			inUse = Arrays.copyOf(inUse, inUseCount * 2);
+		}
+		value.provider = this;
+		value.slot = inUseCount;
+		inUse[inUseCount++] = value;
 		return value;
 	}
 	
+	// Values handed out by another provider and ones already put back are left alone,
+	// pooling them twice would hand the same value out to two owners
 	public void put(Value value) {
-		inUse.remove(value);
-		values.push(value);
+		if(!pooling || value == null || value == Value.NULL) {
+			return;
+		}
+		if(value.provider == this) {
+			if(value.slot == FREE) {
+				return;
+			}
+			release(value);
+		}
+		else if(value.provider != null) {
+			return;
+		}
+		free(value);
 	}
 	
 	public boolean isInUse(Value value) {
-		return inUse.contains(value);
+		return value.provider == this && value.slot != FREE;
+	}
+	
+	// Moves the last in-use value into the slot being emptied
+	private void release(Value value) {
+		Value last = inUse[--inUseCount];
+		inUse[value.slot] = last;
+		last.slot = value.slot;
+		inUse[inUseCount] = null;
 	}
 	
-	public void reclaim() {
-		for(Value value : inUse) {
-			value.update(null);
-			values.add(value);
+	private void free(Value value) {
+		if(valueCount == values.length) {
+			values = Arrays.copyOf(values, valueCount * 2);
 		}
-		inUse.clear();
+		value.provider = this;
+		value.slot = FREE;
+		values[valueCount++] = value;
 	}
 }
@@ -1,11 +1,32 @@
 package net.benjaminurquhart.diannex.runtime;
 
-import java.util.Stack;
+import java.util.Arrays;
+import java.util.EmptyStackException;
 
-public class ValueStack extends Stack<Value> {
+import net.benjaminurquhart.diannex.runtime.Value.Type;
+
+// Operand stack of the runtime. Numbers are kept in their own primitive lanes,
+// so pushing them and doing math on them doesn't need a Value or a box per step.
+// Values are only made when something asks for one.
+//
+// Depths count down from the top of the stack, 0 being the top. Anything past the
+// bottom reads as null, like popping an empty stack always has.
+//
+// Not thread safe, every runtime has its own.
+public class ValueStack {
+	
+	private static final int INITIAL_CAPACITY = 16;
 	
 	private ValueProvider provider;
 	
+	// Same as the fields of a Value: LONG and DOUBLE slots live in their own
+	// lane, everything else is in objects.
+	private Type[] types = new Type[INITIAL_CAPACITY];
+	private long[] longs = new long[INITIAL_CAPACITY];
+	private double[] doubles = new double[INITIAL_CAPACITY];
+	private Object[] objects = new Object[INITIAL_CAPACITY];
+	private int size;
+	
 	public ValueStack() {
 		this(new ValueProvider());
 	}
@@ -14,39 +35,238 @@ public class ValueStack extends Stack<Value> {
 		this.provider = provider;
 	}
 	
-	private static final long serialVersionUID = -1176254484320921997L;
+	public void push(long value) {
+		ensureCapacity();
+		types[size] = Type.LONG;
+		longs[size++] = value;
+	}
 	
-	public void pushObj(Object obj) {
-		push(provider.get(obj));
+	public void push(double value) {
+		ensureCapacity();
+		types[size] = Type.DOUBLE;
+		doubles[size++] = value;
 	}
 	
-	public <T> T peek(Class<T> clazz) {
-		return peek().get(clazz);
+	public void push(boolean value) {
+		push(value ? 1L : 0L);
 	}
 	
-	public <T> T pop(Class<T> clazz) {
-		Value value = pop();
-		T val = value.get(clazz);
-		provider.put(value);
-		return val;
+	// Only what the value holds is kept, the value itself is left to whoever owns it
+	public Value push(Value value) {
+		pushObj(value);
+		return value;
+	}
+	
+	public void pushObj(Object obj) {
+		while(obj instanceof Value) {
+			obj = ((Value)obj).get();
+		}
+		if(obj instanceof Long) {
+			push(((Long)obj).longValue());
+		}
+		else if(obj instanceof Integer) {
+			push(((Integer)obj).longValue());
+		}
+		else if(obj instanceof Boolean) {
+			push(((Boolean)obj).booleanValue());
+		}
+		else if(obj instanceof Double) {
+			push(((Double)obj).doubleValue());
+		}
+		else {
+			Type type = Value.typeOf(obj);
+			ensureCapacity();
+			types[size] = type;
+			objects[size++] = obj;
+		}
+	}
+	
+	// Copies the top of the stack
+	public void dup() {
+		if(size == 0) {
+			throw new EmptyStackException();
+		}
+		ensureCapacity();
+		types[size] = types[size - 1];
+		longs[size] = longs[size - 1];
+		doubles[size] = doubles[size - 1];
+		objects[size] = objects[size - 1];
+		size++;
 	}
 	
-	@Override
 	public Value pop() {
-		if(isEmpty()) {
-			System.err.printf("%sStack empty, returning null\n", ANSI.RESET);
+		if(size == 0) {
+			printEmpty();
 			return Value.NULL;
 		}
-		return super.pop();
+		Value value = provider.get(objectAt(0));
+		drop(1);
+		return value;
 	}
 	
-	@Override
-	public Value push(Value value) {
-		if(value == null) {
-			value = Value.NULL;
+	public <T> T pop(Class<T> clazz) {
+		T value = get(0, clazz);
+		drop(1);
+		return value;
+	}
+	
+	public Object popObj() {
+		Object value = objectAt(0);
+		drop(1);
+		return value;
+	}
+	
+	public long popLong() {
+		long value = longAt(0);
+		drop(1);
+		return value;
+	}
+	
+	public double popDouble() {
+		double value = doubleAt(0);
+		drop(1);
+		return value;
+	}
+	
+	public boolean popBoolean() {
+		boolean value = booleanAt(0);
+		drop(1);
+		return value;
+	}
+	
+	public void drop(int count) {
+		for(int i = 0; i < count; i++) {
+			if(size == 0) {
+				printEmpty();
+				continue;
+			}
+			objects[--size] = null;
 		}
-		
-		return super.push(value);
 	}
-
+	
+	// Not pooled, whoever peeks (eval's caller, the save register) can hold on to it
+	public Value peek() {
+		if(size == 0) {
+			throw new EmptyStackException();
+		}
+		return new Value(objectAt(0));
+	}
+	
+	public <T> T peek(Class<T> clazz) {
+		if(size == 0) {
+			throw new EmptyStackException();
+		}
+		return get(0, clazz);
+	}
+	
+	public Type typeAt(int depth) {
+		int index = size - 1 - depth;
+		return index < 0 ? Type.NULL : types[index];
+	}
+	
+	public boolean isLong(int depth) {
+		return typeAt(depth) == Type.LONG;
+	}
+	
+	public boolean isDouble(int depth) {
+		return typeAt(depth) == Type.DOUBLE;
+	}
+	
+	public boolean isNumber(int depth) {
+		Type type = typeAt(depth);
+		return type == Type.LONG || type == Type.DOUBLE;
+	}
+	
+	// Same as Value.isFloatingPoint
+	public boolean isFloatingPoint(int depth) {
+		Type type = typeAt(depth);
+		return type == Type.DOUBLE || (type == Type.OBJECT && objects[size - 1 - depth] instanceof Float);
+	}
+	
+	// What Value.get() would return
+	public Object objectAt(int depth) {
+		int index = size - 1 - depth;
+		switch(typeAt(depth)) {
+		case NULL: return null;
+		case LONG: return longs[index];
+		case DOUBLE: return doubles[index];
+		default: return objects[index];
+		}
+	}
+	
+	public long longAt(int depth) {
+		switch(typeAt(depth)) {
+		case LONG: return longs[size - 1 - depth];
+		case DOUBLE: return (long)doubles[size - 1 - depth];
+		default: return get(depth, long.class);
+		}
+	}
+	
+	public double doubleAt(int depth) {
+		switch(typeAt(depth)) {
+		case LONG: return longs[size - 1 - depth];
+		case DOUBLE: return doubles[size - 1 - depth];
+		default: return get(depth, double.class);
+		}
+	}
+	
+	public boolean booleanAt(int depth) {
+		switch(typeAt(depth)) {
+		case LONG: return longs[size - 1 - depth] > 0;
+		case DOUBLE: return Math.round(doubles[size - 1 - depth]) != 0;
+		default: return get(depth, boolean.class);
+		}
+	}
+	
+	// Same as Value.get(Class)
+	@SuppressWarnings("unchecked")
+	public <T> T get(int depth, Class<T> clazz) {
+		int index = size - 1 - depth;
+		if(index < 0) {
+			return Value.NULL.get(clazz);
+		}
+		return (T)Value.coerce(types[index], longs[index], doubles[index], types[index] == Type.LONG || types[index] == Type.DOUBLE ? null : objects[index], clazz);
+	}
+	
+	public int size() {
+		return size;
+	}
+	
+	public boolean isEmpty() {
+		return size == 0;
+	}
+	
+	public void clear() {
+		Arrays.fill(objects, 0, size, null);
+		size = 0;
+	}
+	
+	// Bottom of the stack first
+	public Value[] toArray() {
+		Value[] out = new Value[size];
+		for(int i = 0; i < size; i++) {
+			out[i] = new Value(objectAt(size - 1 - i));
+		}
+		return out;
+	}
+	
+	private void ensureCapacity() {
+		if(size < types.length) {
+			return;
+		}
+		int capacity = types.length * 2;
+		types = Arrays.copyOf(types, capacity);
+		longs = Arrays.copyOf(longs, capacity);
+		doubles = Arrays.copyOf(doubles, capacity);
+		objects = Arrays.copyOf(objects, capacity);
+	}
+	
+	private void printEmpty() {
+		System.err.printf("%sStack empty, returning null\n", ANSI.RESET);
+	}
+	
+	@Override
+	public String toString() {
+		return Arrays.toString(toArray());
+	}
 }
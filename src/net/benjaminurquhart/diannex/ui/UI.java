@@ -30,6 +30,7 @@ import net.benjaminurquhart.diannex.DNXCompiled;
 import net.benjaminurquhart.diannex.DNXDefinition;
 import net.benjaminurquhart.diannex.DNXFile;
 import net.benjaminurquhart.diannex.DNXFunction;
+import net.benjaminurquhart.diannex.DNXInfo;
 import net.benjaminurquhart.diannex.DNXScene;
 import net.benjaminurquhart.diannex.DNXString;
 import net.benjaminurquhart.diannex.GenericWorker;
@@ -134,7 +135,12 @@ public class UI extends JPanel implements ActionListener {
 		GenericWorker worker = new GenericWorker("Loading...", () -> {
 			try {
 				disableControls();
-				data = new DNXFile(file);
+				
+				// Counts can be shown right away, the full file takes longer to load
+				DNXInfo info = DNXInfo.read(file);
+				infoText.setText(infoText(info.sceneCount, info.functionCount, info.definitionCount));
+				
+				data = info.load();
 				updateInfoText();
 				Main.frame.setResizable(true);
 				Main.frame.pack();
@@ -153,10 +159,14 @@ public class UI extends JPanel implements ActionListener {
 			infoText.setText("No file loaded");
 		}
 		else {
-			infoText.setText(String.format("Scenes: %d\nFunctions: %d\nDefinitions: %d", data.getScenes().size(), data.getFunctions().size(), data.getDefinitions().size()));
+			infoText.setText(infoText(data.getScenes().size(), data.getFunctions().size(), data.getDefinitions().size()));
 		}
 		//Main.frame.pack();
 	}
+	
+	private static String infoText(int scenes, int functions, int definitions) {
+		return String.format("Scenes: %d\nFunctions: %d\nDefinitions: %d", scenes, functions, definitions);
+	}
 
 	@Override
 	public void actionPerformed(ActionEvent event) {
@@ -249,6 +259,7 @@ public class UI extends JPanel implements ActionListener {
 							}
 							else {
 								entry.instructions = bytecode;
+								data.invalidateBytecode();
 							}
 						}
 						updateInfoText();
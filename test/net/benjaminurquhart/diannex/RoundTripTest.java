@@ -0,0 +1,116 @@
+package net.benjaminurquhart.diannex;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+// Every way of loading a file has to write it back out byte for byte the same
+// as an eager load does, whether it's read eagerly, mapped or through an image.
+// Run from the project directory, next to the sample files.
+public class RoundTripTest {
+	
+	private static final int[] VERSIONS = {2, 3, 4};
+	
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+	
+	@Test
+	public void eagerLoadWritesTheSameBytesAgain() throws IOException {
+		for(int version : VERSIONS) {
+			File source = sample(version);
+			File written = folder.newFile();
+			new DNXFile(source).write(written);
+			
+			DNXFile reloaded = new DNXFile(written);
+			assertEquals(version, reloaded.version);
+			assertArrayEquals("v" + version, Files.readAllBytes(written.toPath()), write(reloaded));
+		}
+	}
+	
+	@Test
+	public void mappedLoadWritesTheSameBytes() throws IOException {
+		for(int version : VERSIONS) {
+			File source = sample(version);
+			assertArrayEquals("v" + version, write(new DNXFile(source)), write(DNXFile.map(source)));
+		}
+	}
+	
+	@Test
+	public void partlyDecodedMappedLoadWritesTheSameBytes() throws IOException {
+		for(int version : VERSIONS) {
+			File source = sample(version);
+			DNXFile eager = new DNXFile(source);
+			DNXFile mapped = DNXFile.map(source);
+			
+			// Read straight off the public fields, which decodes every other scene
+			for(int i = 0; i < mapped.getScenes().size(); i += 2) {
+				DNXScene scene = mapped.getScenes().get(i);
+				assertNotNull(scene.instructions);
+				assertEquals("v" + version + " " + scene, eager.getScenes().get(i).instructions.size(), scene.instructions.size());
+				assertEquals("v" + version + " " + scene, eager.getScenes().get(i).flags.size(), scene.flags.size());
+			}
+			assertArrayEquals("v" + version, write(eager), write(mapped));
+		}
+	}
+	
+	@Test
+	public void cachedLoadWritesTheSameBytes() throws IOException {
+		for(int version : VERSIONS) {
+			File source = sample(version);
+			File image = new File(folder.getRoot(), "v" + version + ".image");
+			byte[] expected = write(new DNXFile(source));
+			
+			// The first load builds the image, the second one reads it
+			assertArrayEquals("v" + version, expected, write(DNXFile.cached(source, image)));
+			assertTrue(image.isFile());
+			assertArrayEquals("v" + version, expected, write(DNXFile.cached(source, image)));
+		}
+	}
+	
+	@Test
+	public void cachedLoadIgnoresImagesOfOtherFiles() throws IOException {
+		File image = folder.newFile("stale.image");
+		DNXFile.cached(sample(3), image);
+		
+		File source = sample(4);
+		assertArrayEquals(write(new DNXFile(source)), write(DNXFile.cached(source, image)));
+	}
+	
+	@Test
+	public void cachedLoadIgnoresBrokenImages() throws IOException {
+		File image = folder.newFile("broken.image");
+		Files.write(image.toPath(), new byte[] {'D', 'N', 'X', 'I', 0, 0, 0, 1, 1, 2, 3});
+		
+		File source = sample(3);
+		assertArrayEquals(write(new DNXFile(source)), write(DNXFile.cached(source, image)));
+	}
+	
+	// There's no v2 sample, so one is saved from the v4 file
+	private File sample(int version) throws IOException {
+		if(version != 2) {
+			return new File(String.format("tsus_demo_v%d_format.dxb", version));
+		}
+		File out = new File(folder.getRoot(), "v2.dxb");
+		if(!out.exists()) {
+			DNXFile file = new DNXFile(sample(4));
+			file.version = 2;
+			file.write(out);
+		}
+		return out;
+	}
+	
+	private byte[] write(DNXFile file) throws IOException {
+		File out = folder.newFile();
+		file.write(out);
+		return Files.readAllBytes(out.toPath());
+	}
+}
@@ -0,0 +1,134 @@
+package net.benjaminurquhart.diannex.runtime;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+
+public class ValueProviderTest {
+	
+	@Test
+	public void putValuesAreHandedOutAgain() {
+		ValueProvider provider = new ValueProvider();
+		Value value = provider.get(1L);
+		assertTrue(provider.isInUse(value));
+		
+		provider.put(value);
+		assertFalse(provider.isInUse(value));
+		
+		Value reused = provider.get("text");
+		assertSame(value, reused);
+		assertTrue(provider.isInUse(reused));
+		assertEquals("text", reused.get());
+	}
+	
+	@Test
+	public void getUnwrapsValues() {
+		ValueProvider provider = new ValueProvider();
+		assertEquals(5L, provider.get(new Value(new Value(5L))).get());
+	}
+	
+	@Test
+	public void puttingAValueBackTwiceOnlyPoolsItOnce() {
+		ValueProvider provider = new ValueProvider();
+		Value value = provider.get(1L);
+		provider.put(value);
+		provider.put(value);
+		
+		assertNotSame(provider.get(2L), provider.get(3L));
+	}
+	
+	// Putting one back moves another into its slot, which must still be tracked
+	@Test
+	public void valuesCanBePutBackInAnyOrder() {
+		ValueProvider provider = new ValueProvider();
+		List<Value> values = new ArrayList<>();
+		for(int i = 0; i < 100; i++) {
+			values.add(provider.get((long)i));
+		}
+		Collections.shuffle(values, new Random(25));
+		
+		for(int i = 0; i < values.size(); i++) {
+			provider.put(values.get(i));
+			for(int j = 0; j < values.size(); j++) {
+				assertEquals(j > i, provider.isInUse(values.get(j)));
+			}
+		}
+		
+		Set<Value> handedOut = Collections.newSetFromMap(new IdentityHashMap<>());
+		for(int i = 0; i < values.size(); i++) {
+			assertTrue(handedOut.add(provider.get((long)i)));
+		}
+	}
+	
+	@Test
+	public void valuesOfOtherProvidersAreLeftAlone() {
+		ValueProvider owner = new ValueProvider(), other = new ValueProvider();
+		Value value = owner.get(1L);
+		
+		other.put(value);
+		assertTrue(owner.isInUse(value));
+		assertFalse(other.isInUse(value));
+		for(int i = 0; i < 20; i++) {
+			assertNotSame(value, other.get(null));
+		}
+	}
+	
+	@Test
+	public void unownedValuesAreAdopted() {
+		ValueProvider provider = new ValueProvider();
+		Value value = new Value(3L);
+		
+		provider.put(value);
+		assertSame(value, provider.get(4L));
+		assertTrue(provider.isInUse(value));
+	}
+	
+	@Test
+	public void nullIsNeverPooled() {
+		ValueProvider provider = new ValueProvider();
+		provider.put(null);
+		provider.put(Value.NULL);
+		
+		for(int i = 0; i < 20; i++) {
+			assertNotSame(Value.NULL, provider.get(null));
+		}
+	}
+	
+	@Test
+	public void nothingIsTrackedWithoutPooling() {
+		ValueProvider provider = new ValueProvider(false);
+		Value value = provider.get(1L);
+		assertFalse(provider.isInUse(value));
+		
+		provider.put(value);
+		assertNotSame(value, provider.get(1L));
+	}
+	
+	@Test
+	public void turningPoolingOffForgetsEveryValue() {
+		ValueProvider provider = new ValueProvider();
+		Value inUse = provider.get(1L), free = provider.get(2L);
+		provider.put(free);
+		
+		provider.setPooling(false);
+		assertFalse(provider.isPooling());
+		assertFalse(provider.isInUse(inUse));
+		assertNotSame(free, provider.get(3L));
+		
+		// Forgotten values are like any other unowned ones afterwards
+		provider.setPooling(true);
+		provider.put(inUse);
+		assertSame(inUse, provider.get(4L));
+	}
+}
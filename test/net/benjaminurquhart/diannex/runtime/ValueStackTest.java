@@ -0,0 +1,211 @@
+package net.benjaminurquhart.diannex.runtime;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.function.Supplier;
+
+import org.junit.Test;
+
+import net.benjaminurquhart.diannex.runtime.Value.Type;
+
+public class ValueStackTest {
+	
+	@Test
+	public void numbersStayInTheirLanes() {
+		ValueStack stack = new ValueStack();
+		stack.push(5L);
+		stack.push(2.5);
+		stack.push(true);
+		
+		assertEquals(Type.LONG, stack.typeAt(0));
+		assertEquals(Type.DOUBLE, stack.typeAt(1));
+		assertEquals(Type.LONG, stack.typeAt(2));
+		
+		assertTrue(stack.popBoolean());
+		assertEquals(2.5, stack.popDouble(), 0);
+		assertEquals(5L, stack.popLong());
+		assertTrue(stack.isEmpty());
+	}
+	
+	@Test
+	public void numbersConvertBetweenLanes() {
+		ValueStack stack = new ValueStack();
+		stack.push(2.75);
+		stack.push(3L);
+		
+		assertEquals(3.0, stack.doubleAt(0), 0);
+		assertEquals(2L, stack.longAt(1));
+		assertTrue(stack.booleanAt(1));
+		assertEquals(Long.valueOf(3), stack.objectAt(0));
+		assertEquals(Double.valueOf(2.75), stack.objectAt(1));
+	}
+	
+	@Test
+	public void pushObjSortsObjectsIntoLanes() {
+		ValueStack stack = new ValueStack();
+		stack.pushObj(Integer.valueOf(3));
+		stack.pushObj(Boolean.FALSE);
+		stack.pushObj(new Value(new Value(7.5)));
+		stack.pushObj("text");
+		stack.pushObj(new Object[] {"a"});
+		stack.pushObj(Float.valueOf(1.5f));
+		stack.pushObj(null);
+		
+		assertEquals(Type.NULL, stack.typeAt(0));
+		assertEquals(Type.OBJECT, stack.typeAt(1));
+		assertTrue(stack.isFloatingPoint(1));
+		assertEquals(Type.ARRAY, stack.typeAt(2));
+		assertEquals(Type.STRING, stack.typeAt(3));
+		assertEquals(Type.DOUBLE, stack.typeAt(4));
+		assertEquals(7.5, stack.doubleAt(4), 0);
+		assertEquals(Type.LONG, stack.typeAt(5));
+		assertEquals(0L, stack.longAt(5));
+		assertEquals(Type.LONG, stack.typeAt(6));
+		assertEquals(3L, stack.longAt(6));
+	}
+	
+	// Reading a slot has to give the same answer as reading a Value holding the same thing
+	@Test
+	public void coercesLikeValue() {
+		Object[] objects = {5L, -2L, 0L, 2.5, -0.4, 0.6, "12", "text", 'c', 1.5f, new Object[] {"a"}};
+		Class<?>[] classes = {Object.class, String.class, boolean.class, long.class, int.class, double.class, float.class, short.class, byte.class};
+		
+		ValueStack stack = new ValueStack();
+		for(Object obj : objects) {
+			stack.pushObj(obj);
+			Value value = new Value(obj);
+			for(Class<?> clazz : classes) {
+				assertEquals(obj + " as " + clazz, outcome(() -> value.get(clazz)), outcome(() -> stack.get(0, clazz)));
+			}
+			assertEquals(value.getType(), stack.typeAt(0));
+			assertEquals(value.isFloatingPoint(), stack.isFloatingPoint(0));
+			stack.drop(1);
+		}
+	}
+	
+	@Test
+	public void dupCopiesEveryLane() {
+		ValueStack stack = new ValueStack();
+		stack.push(4L);
+		stack.dup();
+		stack.push(1.25);
+		stack.dup();
+		stack.pushObj("s");
+		stack.dup();
+		
+		assertArrayEquals(new Object[] {4L, 4L, 1.25, 1.25, "s", "s"}, contents(stack));
+	}
+	
+	@Test
+	public void growsPastItsInitialCapacity() {
+		ValueStack stack = new ValueStack();
+		for(int i = 0; i < 100; i++) {
+			if(i % 3 == 0) {
+				stack.push((long)i);
+			}
+			else if(i % 3 == 1) {
+				stack.push((double)i);
+			}
+			else {
+				stack.pushObj(String.valueOf(i));
+			}
+		}
+		assertEquals(100, stack.size());
+		for(int i = 99; i >= 0; i--) {
+			if(i % 3 == 0) {
+				assertEquals(i, stack.popLong());
+			}
+			else if(i % 3 == 1) {
+				assertEquals(i, stack.popDouble(), 0);
+			}
+			else {
+				assertEquals(String.valueOf(i), stack.popObj());
+			}
+		}
+		assertTrue(stack.isEmpty());
+	}
+	
+	@Test
+	public void readsPastTheBottomAreNull() {
+		ValueStack stack = new ValueStack();
+		assertEquals(Type.NULL, stack.typeAt(0));
+		assertNull(stack.objectAt(0));
+		assertNull(stack.get(0, String.class));
+		assertSame(Value.NULL, stack.pop());
+		assertNull(stack.popObj());
+	}
+	
+	@Test
+	public void pushedValuesAreLeftToTheirOwner() {
+		ValueProvider provider = new ValueProvider();
+		ValueStack stack = new ValueStack(provider);
+		Value value = provider.get(3L);
+		
+		assertSame(value, stack.push(value));
+		assertTrue(provider.isInUse(value));
+		
+		value.update("changed");
+		assertEquals(3L, stack.popLong());
+	}
+	
+	@Test
+	public void poppedValuesComeFromTheProvider() {
+		ValueProvider provider = new ValueProvider();
+		ValueStack stack = new ValueStack(provider);
+		stack.push(9L);
+		
+		Value value = stack.pop();
+		assertTrue(provider.isInUse(value));
+		assertEquals(9L, value.getLong());
+	}
+	
+	@Test
+	public void peekedValuesAreNotPooled() {
+		ValueProvider provider = new ValueProvider();
+		ValueStack stack = new ValueStack(provider);
+		stack.pushObj("top");
+		
+		Value value = stack.peek();
+		assertEquals("top", value.get());
+		assertFalse(provider.isInUse(value));
+		assertEquals(1, stack.size());
+	}
+	
+	@Test
+	public void clearEmptiesTheStack() {
+		ValueStack stack = new ValueStack();
+		stack.pushObj("a");
+		stack.push(1L);
+		stack.clear();
+		
+		assertTrue(stack.isEmpty());
+		assertEquals(0, stack.toArray().length);
+	}
+	
+	// Bottom first, like toArray
+	private static Object[] contents(ValueStack stack) {
+		Value[] values = stack.toArray();
+		Object[] out = new Object[values.length];
+		for(int i = 0; i < values.length; i++) {
+			out[i] = values[i].get();
+		}
+		return out;
+	}
+	
+	// The result, or the class of whatever was thrown instead
+	private static Object outcome(Supplier<Object> supplier) {
+		try {
+			Object out = supplier.get();
+			return out instanceof Object[] ? Arrays.asList((Object[])out) : out;
+		}
+		catch(RuntimeException e) {
+			return e.getClass();
+		}
+	}
+}